@@ -0,0 +1,86 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Time per frame while a replay burst arrives, rendered off screen: strokes
+ * go into a 1000x500 backing image and the changed part is composited onto
+ * a "screen" image, as Canvas.paintComponent does. Compares a new
+ * BasicStroke and full-panel composite per segment, a full composite once
+ * per frame, and the dirty-region composite once per frame.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out CanvasRepaintBench [segments per frame]
+ */
+public class CanvasRepaintBench {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 500;
+    private static final int FRAMES = 400;
+
+    public static void main(String[] args) {
+        int perFrame = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = image.createGraphics();
+        StrokeStyle.prepare(g2);
+        Graphics2D g = screen.createGraphics();
+
+        // A stroke wandering across part of the board, as a fast scribble would
+        Random random = new Random(7);
+        int[] segments = new int[FRAMES * perFrame * 4];
+        int x = 300, y = 200;
+        for (int i = 0; i < segments.length; i += 4) {
+            segments[i] = x;
+            segments[i + 1] = y;
+            x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(11) - 5));
+            y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(11) - 5));
+            segments[i + 2] = x;
+            segments[i + 3] = y;
+        }
+
+        DirtyRegion dirty = new DirtyRegion();
+        Rectangle bounds = new Rectangle();
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < segments.length; i += 4) {
+                g2.setStroke(new BasicStroke(3));
+                g2.setColor(Color.BLACK);
+                g2.drawLine(segments[i], segments[i + 1], segments[i + 2], segments[i + 3]);
+                g.drawImage(image, 0, 0, null);
+            }
+            long perSegment = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int f = 0; f < FRAMES; f++) {
+                StrokeStyle.apply(g2, false);
+                for (int i = f * perFrame * 4; i < (f + 1) * perFrame * 4; i += 4) {
+                    g2.drawLine(segments[i], segments[i + 1], segments[i + 2], segments[i + 3]);
+                }
+                g.drawImage(image, 0, 0, null);
+            }
+            long fullFrame = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int f = 0; f < FRAMES; f++) {
+                StrokeStyle.apply(g2, false);
+                for (int i = f * perFrame * 4; i < (f + 1) * perFrame * 4; i += 4) {
+                    g2.drawLine(segments[i], segments[i + 1], segments[i + 2], segments[i + 3]);
+                    dirty.add(segments[i], segments[i + 1], segments[i + 2], segments[i + 3], false);
+                }
+                if (dirty.take(bounds)) {
+                    int right = bounds.x + bounds.width;
+                    int bottom = bounds.y + bounds.height;
+                    g.drawImage(image, bounds.x, bounds.y, right, bottom, bounds.x, bounds.y, right, bottom, null);
+                }
+            }
+            long dirtyFrame = System.nanoTime() - start;
+
+            if (pass == 2) {
+                System.out.println("Segments per frame: " + perFrame);
+                System.out.printf("New stroke + full composite per segment: %8.3f ms/frame%n", perSegment / 1e6 / FRAMES);
+                System.out.printf("Full composite per frame:                %8.3f ms/frame%n", fullFrame / 1e6 / FRAMES);
+                System.out.printf("Dirty-region composite per frame:        %8.3f ms/frame%n", dirtyFrame / 1e6 / FRAMES);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import javax.swing.SwingUtilities;
+
+/**
+ * Messages per second through the client's receive path for a stream of
+ * text DRAW lines, measured until the EDT has applied the last one. The old
+ * path builds a String per line, walks a startsWith chain, splits and posts
+ * one invokeLater per line; the new one dispatches bytes through a
+ * CommandTable into a DrawQueue that the EDT drains in batches.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out ClientParseBench [lines]
+ */
+public class ClientParseBench {
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("DRAW ").append(i % 800).append(' ').append(i % 600).append(' ')
+                    .append(i % 800 + 3).append(' ').append(i % 600 + 2).append(i % 10 == 0 ? " ERASE\n" : "\n");
+        }
+        byte[] stream = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (int pass = 0; pass < 3; pass++) {
+            long oldNanos = legacy(stream, lines);
+            long newNanos = table(stream, lines);
+            if (pass == 2) {
+                System.out.printf("String + invokeLater per line: %,12.0f msgs/s%n", lines * 1e9 / oldNanos);
+                System.out.printf("CommandTable + DrawQueue:      %,12.0f msgs/s%n", lines * 1e9 / newNanos);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static long legacy(byte[] stream, int lines) throws Exception {
+        FrameReader in = new FrameReader(new ByteArrayInputStream(stream));
+        CountDownLatch done = new CountDownLatch(lines);
+        long[] sum = new long[1];
+        long start = System.nanoTime();
+        String msg;
+        while ((msg = in.readLine()) != null) {
+            if (msg.equals("PONG")) {
+                continue;
+            } else if (msg.startsWith("DRAW ")) {
+                String[] parts = msg.substring(5).split(" ");
+                int x1 = Integer.parseInt(parts[0]);
+                int y1 = Integer.parseInt(parts[1]);
+                int x2 = Integer.parseInt(parts[2]);
+                int y2 = Integer.parseInt(parts[3]);
+                boolean isEraser = parts.length > 4 && parts[4].equals("ERASE");
+                SwingUtilities.invokeLater(() -> {
+                    sum[0] += x1 + y1 + x2 + y2 + (isEraser ? 1 : 0);
+                    done.countDown();
+                });
+            }
+        }
+        done.await();
+        blackhole = sum[0];
+        return System.nanoTime() - start;
+    }
+
+    private static long table(byte[] stream, int lines) throws IOException, InterruptedException {
+        FrameReader in = new FrameReader(new ByteArrayInputStream(stream));
+        CountDownLatch done = new CountDownLatch(1);
+        long[] sum = new long[2];
+        DrawQueue queue = new DrawQueue(new DrawQueue.Target() {
+            public void drawPolyline(int[] xy, int offset, int pointCount, boolean erase) {
+                sum[0] += xy[offset] + xy[offset + 1] + xy[offset + 2] + xy[offset + 3] + (erase ? 1 : 0);
+                if (++sum[1] == lines) {
+                    done.countDown();
+                }
+            }
+
+            public void clear() {}
+
+            public void drawSnapshot(BufferedImage snapshot) {}
+
+            public void beginRepaint(int x, int y, int width, int height) {}
+
+            public void endRepaint() {}
+
+            public void endBatch() {}
+        });
+        int[] line = new int[4];
+        CommandTable commands = new CommandTable()
+                .add("PONG", (msg, s, e) -> {})
+                .add("DRAW ", (msg, s, e) -> {
+                    int pos = CommandTable.parseInts(msg, s, e, line, 4);
+                    if (pos >= 0) {
+                        queue.polyline(line, 2, CommandTable.equals(msg, pos, e, " ERASE"));
+                    }
+                });
+
+        long start = System.nanoTime();
+        int length;
+        while ((length = in.readLineBytes()) >= 0) {
+            commands.dispatch(in.frame(), 0, length);
+        }
+        done.await();
+        blackhole = sum[0];
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares bytes allocated per DRAW broadcast between the old fan-out, where
+ * every recipient's autoflush PrintWriter re-encodes the line, and the
+ * encode-once Frame path through the per-client outbound queues.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out FanoutAllocationBench [recipients]
+ */
+public class FanoutAllocationBench {
+    private static final int WARMUP = 20_000;
+    private static final int ROUNDS = 50_000;
+
+    public static void main(String[] args) throws Exception {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String message = "DRAW 123 456 130 460";
+
+        PrintWriter[] writers = new PrintWriter[recipients];
+        OutputStream[] streams = new OutputStream[recipients];
+        OutboundQueue[] queues = new OutboundQueue[recipients];
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new PrintWriter(new BufferedOutputStream(OutputStream.nullOutputStream()), true);
+            streams[i] = new BufferedOutputStream(OutputStream.nullOutputStream());
+            queues[i] = new OutboundQueue(1024, OutboundQueue.SlowConsumerPolicy.DROP, 5000);
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            int rounds = pass == 0 ? WARMUP : ROUNDS;
+
+            long before = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (PrintWriter writer : writers) {
+                    writer.println(message);
+                }
+            }
+            long oldNanos = System.nanoTime() - start;
+            long oldBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            before = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                Frame frame = Frame.of(message);
+                for (int i = 0; i < recipients; i++) {
+                    queues[i].offer(frame);
+                    queues[i].poll().writeTo(streams[i], false);
+                    streams[i].flush();
+                }
+            }
+            long newNanos = System.nanoTime() - start;
+            long newBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            if (pass == 1) {
+                System.out.println("Recipients: " + recipients);
+                System.out.printf("PrintWriter per recipient: %8.1f bytes/broadcast %8.1f ns/broadcast%n",
+                        (double) oldBytes / rounds, (double) oldNanos / rounds);
+                System.out.printf("Encode-once Frame:         %8.1f bytes/broadcast %8.1f ns/broadcast%n",
+                        (double) newBytes / rounds, (double) newNanos / rounds);
+            }
+        }
+    }
+}
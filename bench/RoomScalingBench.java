@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DRAW throughput with one drawing thread per room against the same number
+ * of threads all drawing into one shared room, the way every client shared
+ * one canvas before rooms. Each room has the given number of members whose
+ * outbound queues are drained as frames arrive. With rooms, throughput
+ * should grow with the thread count up to the number of cores; the shared
+ * room stays flat because every draw takes the same lock.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out RoomScalingBench [max threads] [members per room]
+ */
+public class RoomScalingBench {
+    private static final long RUN_MILLIS = 2000;
+
+    // Stands in for a connection: frames are taken off the queue as soon as they are queued
+    static final class DrainingClient extends Server.ClientHandler {
+        void wakeWriter() {
+            while (outbound.poll() != null) {
+            }
+        }
+
+        void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        System.out.println("Cores: " + Runtime.getRuntime().availableProcessors() + ", members per room: " + members);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double shared = run(threads, 1, members);
+                double sharded = run(threads, threads, members);
+                if (pass == 1) {
+                    System.out.printf("%2d drawers: one room %10.0f draws/s   %2d rooms %10.0f draws/s%n",
+                            threads, shared, threads, sharded);
+                }
+            }
+        }
+    }
+
+    // Draws per second with threads drawers spread evenly over roomCount rooms
+    private static double run(int threads, int roomCount, int members) throws Exception {
+        List<Room> rooms = new ArrayList<>();
+        for (int r = 0; r < roomCount; r++) {
+            Room room = new Room("room-" + r, new CanvasCheckpoint(2000, 1200, 512));
+            for (int m = 0; m < members; m++) {
+                room.join(new DrainingClient(), null);
+            }
+            rooms.add(room);
+        }
+
+        LongAdder draws = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Room room = rooms.get(t % roomCount);
+            Server.ClientHandler drawer = new DrainingClient();
+            int seed = t;
+            new Thread(() -> {
+                int x = 100 + seed * 10;
+                long count = 0;
+                while (running.get()) {
+                    room.draw(Frame.polyline(new int[]{x, 100, x + 5, 105, x + 10, 100}, false), drawer, false, null);
+                    count++;
+                }
+                draws.add(count);
+                done.countDown();
+            }).start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Room room : rooms) {
+            room.close();
+        }
+        return draws.sum() / seconds;
+    }
+}
@@ -0,0 +1,119 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Memory per segment and undo latency for a board of short strokes, as
+ * flat "DRAW x1 y1 x2 y2" strings against the StrokeIndex. The strings have
+ * no notion of strokes, so undoing one means removing its lines and
+ * rendering everything that is left again; the index takes the stroke out
+ * and redraws only the strokes crossing its box.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out StrokeIndexBench [strokes]
+ */
+public class StrokeIndexBench {
+    private static final int WIDTH = 2000;
+    private static final int HEIGHT = 1200;
+    private static final int POINTS = 8;
+    private static final int STRING_UNDOS = 10;
+    private static final int INDEX_UNDOS = 1000;
+
+    public static void main(String[] args) {
+        int strokes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int[][] xy = new int[strokes][];
+        Random random = new Random(5);
+        for (int s = 0; s < strokes; s++) {
+            int x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            xy[s] = new int[2 * POINTS];
+            for (int i = 0; i < POINTS; i++) {
+                x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(41) - 20));
+                y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(41) - 20));
+                xy[s][2 * i] = x;
+                xy[s][2 * i + 1] = y;
+            }
+        }
+        long segments = (long) strokes * (POINTS - 1);
+
+        long before = usedMemory();
+        List<String> lines = new ArrayList<>();
+        for (int[] stroke : xy) {
+            for (int i = 1; i < POINTS; i++) {
+                lines.add("DRAW " + stroke[2 * i - 2] + " " + stroke[2 * i - 1] + " " + stroke[2 * i] + " " + stroke[2 * i + 1]);
+            }
+        }
+        long stringBytes = usedMemory() - before;
+
+        // Each stroke arrives as two batches, the second starting where the first ended
+        Object drawer = new Object();
+        before = usedMemory();
+        StrokeIndex index = new StrokeIndex(WIDTH, HEIGHT);
+        for (int[] stroke : xy) {
+            index.add(java.util.Arrays.copyOfRange(stroke, 0, POINTS), false, drawer);
+            index.add(java.util.Arrays.copyOfRange(stroke, POINTS - 2, 2 * POINTS), false, drawer);
+        }
+        long indexBytes = usedMemory() - before;
+
+        BufferedImage board = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = board.createGraphics();
+        StrokeStyle.prepare(g);
+
+        // Undo the newest stroke: drop its lines, then redraw the whole board from what is left
+        long start = System.nanoTime();
+        for (int u = 0; u < STRING_UNDOS; u++) {
+            lines.subList(lines.size() - (POINTS - 1), lines.size()).clear();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, WIDTH, HEIGHT);
+            StrokeStyle.apply(g, false);
+            for (String line : lines) {
+                String[] parts = line.split(" ");
+                g.drawLine(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+            }
+        }
+        double stringUndo = (System.nanoTime() - start) / 1e3 / STRING_UNDOS;
+
+        // Undo the newest stroke: take it out of the index and redraw its box
+        start = System.nanoTime();
+        int undone = 0;
+        for (int u = 0; u < Math.min(INDEX_UNDOS, strokes); u++) {
+            int stroke = index.latest(drawer);
+            Frame repaint = index.remove(stroke);
+            int[] region = repaint.region();
+            g.setClip(region[0], region[1], region[2], region[3]);
+            g.setColor(Color.WHITE);
+            g.fillRect(region[0], region[1], region[2], region[3]);
+            for (Frame part : repaint.parts()) {
+                int[] points = part.points();
+                if (points != null) {
+                    StrokeStyle.apply(g, part.isErase());
+                    int[] xs = new int[points.length / 2], ys = new int[points.length / 2];
+                    for (int i = 0; i < xs.length; i++) {
+                        xs[i] = points[2 * i];
+                        ys[i] = points[2 * i + 1];
+                    }
+                    g.drawPolyline(xs, ys, xs.length);
+                }
+            }
+            g.setClip(null);
+            undone++;
+        }
+        double indexUndo = (System.nanoTime() - start) / 1e3 / undone;
+        g.dispose();
+
+        System.out.println(strokes + " strokes of " + POINTS + " points on a " + WIDTH + "x" + HEIGHT + " board, " + segments + " segments");
+        System.out.printf("DRAW strings:  %6.1f bytes per segment, undo %10.1f us (remove lines, redraw the board)%n",
+                (double) stringBytes / segments, stringUndo);
+        System.out.printf("StrokeIndex:   %6.1f bytes per segment, undo %10.1f us (remove stroke, redraw its box)%n",
+                (double) indexBytes / segments, indexUndo);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
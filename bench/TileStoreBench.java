@@ -0,0 +1,72 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Memory and time for a sparse sketch on a large board. A single RGB backing
+ * image costs width * height * 4 bytes however little is drawn; the tiled
+ * store allocates a gray tile only where strokes land and deflates the ones
+ * that fall out of its cache. Also times painting a window-sized viewport
+ * out of the tiles, including tiles that must be inflated first.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -Djava.awt.headless=true -cp out TileStoreBench [width] [height] [tile cache]
+ */
+public class TileStoreBench {
+    private static final int SCRIBBLES = 40;
+    private static final int POINTS = 400;
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 6000;
+        int cache = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        // Scribbles scattered over the board, each a few hundred pixels across
+        Random random = new Random(11);
+        int[][] xs = new int[SCRIBBLES][POINTS];
+        int[][] ys = new int[SCRIBBLES][POINTS];
+        for (int s = 0; s < SCRIBBLES; s++) {
+            int x = random.nextInt(width), y = random.nextInt(height);
+            for (int i = 0; i < POINTS; i++) {
+                x = Math.max(0, Math.min(width - 1, x + random.nextInt(11) - 5));
+                y = Math.max(0, Math.min(height - 1, y + random.nextInt(11) - 5));
+                xs[s][i] = x;
+                ys[s][i] = y;
+            }
+        }
+
+        for (int pass = 0; pass < 3; pass++) {
+            TileStore store = new TileStore(width, height, cache);
+            long start = System.nanoTime();
+            for (int s = 0; s < SCRIBBLES; s++) {
+                store.drawPolyline(xs[s], ys[s], POINTS, false);
+            }
+            long drawNanos = System.nanoTime() - start;
+
+            BufferedImage screen = new BufferedImage(1000, 600, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = screen.createGraphics();
+            Rectangle viewport = new Rectangle(0, 0, 1000, 600);
+            int viewports = 0;
+            start = System.nanoTime();
+            for (int y = 0; y + 600 <= height; y += 600) {
+                for (int x = 0; x + 1000 <= width; x += 1000) {
+                    g.setTransform(new java.awt.geom.AffineTransform());
+                    g.translate(-x, -y);
+                    viewport.setLocation(x, y);
+                    store.paint(g, viewport);
+                    viewports++;
+                }
+            }
+            long paintNanos = System.nanoTime() - start;
+            g.dispose();
+
+            if (pass == 2) {
+                System.out.println("Board " + width + "x" + height + ", " + SCRIBBLES + " scribbles, tile cache " + cache);
+                System.out.printf("Single RGB image:   %8d KB%n", (long) width * height * 4 / 1024);
+                System.out.println("Tiles:              " + store.stats());
+                System.out.printf("Draw:               %8.3f ms per scribble%n", drawNanos / 1e6 / SCRIBBLES);
+                System.out.printf("Paint viewport:     %8.3f ms (%d viewports scrolled through)%n", paintNanos / 1e6 / viewports, viewports);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Bytes allocated per voice frame on the client, sender and receiver side
+ * together. The old path copied each microphone read, base64-encoded it into
+ * a VOICE_DATA line, then split, decoded and queued a fresh array on the
+ * receiving end; the pooled path encodes into a reused buffer, frames it as
+ * OP_VOICE and decodes into a JitterBuffer frame that playback copies out.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out VoiceAllocationBench [frames]
+ */
+public class VoiceAllocationBench {
+    private static final int FRAME_BYTES = 1024;
+    // Keeps the JIT from discarding the work
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        byte[] pcm = new byte[FRAME_BYTES];
+        for (int i = 0; i < FRAME_BYTES / 2; i++) {
+            int sample = (int) (8000 * Math.sin(2 * Math.PI * 440 * i / 8000.0));
+            pcm[2 * i] = (byte) (sample >> 8);
+            pcm[2 * i + 1] = (byte) sample;
+        }
+
+        System.out.printf("%-6s %16s %16s%n", "codec", "VOICE_DATA B/frm", "pooled B/frm");
+        for (VoiceCodec codec : new VoiceCodec[]{VoiceCodec.PCM, VoiceCodec.ADPCM}) {
+            long oldBytes = 0;
+            long newBytes = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                legacy(codec, pcm, frames);
+                oldBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+                JitterBuffer jitter = new JitterBuffer(8000, 2);
+                before = threads.getCurrentThreadAllocatedBytes();
+                pooled(codec, pcm, frames, jitter);
+                newBytes = threads.getCurrentThreadAllocatedBytes() - before;
+            }
+            System.out.printf("%-6s %16.1f %16.1f%n", codec.name(), (double) oldBytes / frames, (double) newBytes / frames);
+        }
+    }
+
+    // The pre-pool path: copy, base64 line, then split, substring and decode into a new array per frame
+    private static void legacy(VoiceCodec codec, byte[] pcm, int frames) {
+        byte[] scratch = new byte[VoiceCodec.MAX_DECODED_LENGTH];
+        long sink = 0;
+        for (int f = 0; f < frames; f++) {
+            byte[] encoded = Arrays.copyOf(scratch, codec.encode(pcm, pcm.length, scratch));
+            byte[] line = ("VOICE_DATA bob " + Base64.getEncoder().encodeToString(encoded) + "\n").getBytes(StandardCharsets.UTF_8);
+
+            String msg = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+            String[] parts = msg.substring(11).split(" ", 2);
+            byte[] received = Base64.getDecoder().decode(parts[1]);
+            byte[] decoded = Arrays.copyOf(scratch, codec.decode(received, 0, received.length, scratch));
+            sink += decoded[decoded.length / 2];
+        }
+        blackhole = sink;
+    }
+
+    private static void pooled(VoiceCodec codec, byte[] pcm, int frames, JitterBuffer jitter) throws InterruptedException {
+        byte[] encoded = new byte[FRAME_BYTES];
+        byte[] wire = new byte[Protocol.MAX_VOICE_FRAME_LENGTH];
+        byte[] speaker = new byte[VoiceCodec.MAX_DECODED_LENGTH];
+        long sink = 0;
+        for (int f = 0; f < frames; f++) {
+            int length = codec.encode(pcm, pcm.length, encoded);
+            int frameLength = Protocol.encodeVoice(f, encoded, length, wire);
+
+            // Receiver side: the payload starts after the length prefix and opcode
+            int payload = Protocol.varintSize(1 + 4 + length) + 1;
+            JitterBuffer.VoiceFrame frame = jitter.acquire();
+            if (frame != null) {
+                frame.length = codec.decode(wire, payload + 4, frameLength - payload - 4, frame.data);
+                jitter.offer(Protocol.voiceSequence(wire, payload), frame);
+            }
+            int played = jitter.poll(speaker, 0);
+            if (played > 0) {
+                sink += speaker[played / 2];
+            }
+        }
+        blackhole = sink;
+    }
+}
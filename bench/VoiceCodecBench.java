@@ -0,0 +1,79 @@
+/**
+ * Encode/decode time per 64 ms voice frame and bandwidth per direction for
+ * each VoiceCodec, on a synthetic voice-like signal (a few harmonics with a
+ * slow amplitude envelope plus noise). SNR shows what the savings cost.
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out VoiceCodecBench [frames]
+ */
+public class VoiceCodecBench {
+    private static final int FRAME_BYTES = 1024;
+    private static final double FRAMES_PER_SECOND = 8000.0 * 2 / FRAME_BYTES;
+    // Keeps the JIT from discarding the decoded frames
+    static volatile long blackhole;
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        byte[][] input = new byte[256][];
+        java.util.Random random = new java.util.Random(42);
+        for (int f = 0; f < input.length; f++) {
+            input[f] = new byte[FRAME_BYTES];
+            for (int i = 0; i < FRAME_BYTES / 2; i++) {
+                double t = (f * FRAME_BYTES / 2 + i) / 8000.0;
+                double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+                double value = envelope * (6000 * Math.sin(2 * Math.PI * 180 * t) + 3000 * Math.sin(2 * Math.PI * 360 * t)
+                        + 1500 * Math.sin(2 * Math.PI * 720 * t)) + random.nextGaussian() * 200;
+                int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+                input[f][2 * i] = (byte) (sample >> 8);
+                input[f][2 * i + 1] = (byte) sample;
+            }
+        }
+
+        System.out.printf("%-6s %10s %12s %12s %10s %8s %8s%n",
+                "codec", "bytes/frm", "encode ns", "decode ns", "kbit/s", "saved", "SNR dB");
+        for (VoiceCodec codec : new VoiceCodec[]{VoiceCodec.PCM, VoiceCodec.MULAW, VoiceCodec.ADPCM}) {
+            long sink = 0;
+            byte[] encoded = new byte[FRAME_BYTES];
+            byte[] decoded = new byte[VoiceCodec.MAX_DECODED_LENGTH];
+            long encodeNanos = 0;
+            long decodeNanos = 0;
+            long encodedBytes = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                encodeNanos = 0;
+                decodeNanos = 0;
+                encodedBytes = 0;
+                for (int f = 0; f < frames; f++) {
+                    byte[] pcm = input[f % input.length];
+                    long start = System.nanoTime();
+                    int encodedLength = codec.encode(pcm, pcm.length, encoded);
+                    long middle = System.nanoTime();
+                    int decodedLength = codec.decode(encoded, 0, encodedLength, decoded);
+                    long end = System.nanoTime();
+                    encodeNanos += middle - start;
+                    decodeNanos += end - middle;
+                    encodedBytes += encodedLength;
+                    sink += decoded[decodedLength / 2];
+                }
+            }
+
+            double signal = 0;
+            double noise = 0;
+            for (byte[] pcm : input) {
+                codec.decode(encoded, 0, codec.encode(pcm, pcm.length, encoded), decoded);
+                for (int i = 0; i < pcm.length / 2; i++) {
+                    int original = (short) ((pcm[2 * i] << 8) | (pcm[2 * i + 1] & 0xFF));
+                    int restored = (short) ((decoded[2 * i] << 8) | (decoded[2 * i + 1] & 0xFF));
+                    signal += (double) original * original;
+                    noise += (double) (original - restored) * (original - restored);
+                }
+            }
+
+            double bytesPerFrame = (double) encodedBytes / frames;
+            blackhole = sink;
+            System.out.printf("%-6s %10.1f %12.0f %12.0f %10.1f %7.0f%% %8s%n",
+                    codec.name(), bytesPerFrame, (double) encodeNanos / frames, (double) decodeNanos / frames,
+                    bytesPerFrame * 8 * FRAMES_PER_SECOND / 1000, 100 * (1 - bytesPerFrame / FRAME_BYTES),
+                    noise == 0 ? "lossless" : String.format("%.1f", 10 * Math.log10(signal / noise)));
+        }
+    }
+}
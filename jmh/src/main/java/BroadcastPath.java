@@ -0,0 +1,56 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import pictionary.bench.HotPath;
+
+/**
+ * Room.broadcast of one DRAW polyline to every member of a room. Each member
+ * writes what it is sent straight away, the way its writer thread would, so
+ * an operation covers encoding once, queueing per member and every
+ * member's write.
+ *
+ * Params: member count.
+ */
+public class BroadcastPath implements HotPath {
+    // Stands in for a connection whose writer keeps up: frames go to a null stream as soon as they are queued
+    static final class WritingClient extends Server.ClientHandler {
+        private final OutputStream out = new BufferedOutputStream(OutputStream.nullOutputStream());
+
+        void wakeWriter() {
+            try {
+                Frame frame;
+                while ((frame = outbound.poll()) != null) {
+                    recordSent(frame, frame.writeTo(out, true));
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() {
+        }
+    }
+
+    private final Room room = new Room("bench", new CanvasCheckpoint(2000, 1200, 512));
+    private int x;
+
+    public BroadcastPath(String[] params) {
+        int members = Integer.parseInt(params[0]);
+        for (int i = 0; i < members; i++) {
+            room.join(new WritingClient(), null);
+        }
+    }
+
+    public Object run() {
+        x = (x + 7) % 1900;
+        Frame frame = Frame.polyline(new int[]{x, 100, x + 5, 105, x + 10, 100}, false);
+        room.broadcast(frame, null);
+        return frame;
+    }
+
+    public void close() {
+        room.close();
+    }
+}
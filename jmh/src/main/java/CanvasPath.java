@@ -0,0 +1,78 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import pictionary.bench.HotPath;
+
+/**
+ * Rendering received strokes headlessly: the client Canvas's TileStore, or
+ * a single RGB image covering the whole board as the Canvas had before
+ * tiles. Strokes cycle through random short scribbles spread over the board.
+ *
+ * Params: "tiles" or "image"; "line" for one segment or "polyline" for an
+ * eight-point stroke.
+ */
+public class CanvasPath implements HotPath {
+    private static final int WIDTH = 2000;
+    private static final int HEIGHT = 1200;
+    private static final int STROKES = 1024;
+    private static final int POINTS = 8;
+
+    private final TileStore tiles;
+    private final BufferedImage image;
+    private final Graphics2D g;
+    private final boolean polyline;
+    private final int[][] xs = new int[STROKES][POINTS];
+    private final int[][] ys = new int[STROKES][POINTS];
+    private int next;
+
+    public CanvasPath(String[] params) {
+        if (params[0].equals("tiles")) {
+            tiles = new TileStore(WIDTH, HEIGHT, 256);
+            image = null;
+            g = null;
+        } else {
+            tiles = null;
+            image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            g = image.createGraphics();
+            StrokeStyle.prepare(g);
+        }
+        polyline = params[1].equals("polyline");
+        Random random = new Random(7);
+        for (int s = 0; s < STROKES; s++) {
+            int x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            for (int i = 0; i < POINTS; i++) {
+                x = Math.max(0, Math.min(WIDTH - 1, x + random.nextInt(21) - 10));
+                y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextInt(21) - 10));
+                xs[s][i] = x;
+                ys[s][i] = y;
+            }
+        }
+    }
+
+    public Object run() {
+        int s = next++ & (STROKES - 1);
+        boolean erase = s % 10 == 0;
+        int[] x = xs[s], y = ys[s];
+        if (tiles != null) {
+            if (polyline) {
+                tiles.drawPolyline(x, y, POINTS, erase);
+            } else {
+                tiles.drawLine(x[0], y[0], x[1], y[1], erase);
+            }
+            return tiles;
+        }
+        StrokeStyle.apply(g, erase);
+        if (polyline) {
+            g.drawPolyline(x, y, POINTS);
+        } else {
+            g.drawLine(x[0], y[0], x[1], y[1]);
+        }
+        return image;
+    }
+
+    public void close() {
+        if (g != null) {
+            g.dispose();
+        }
+    }
+}
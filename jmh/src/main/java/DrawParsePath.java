@@ -0,0 +1,81 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import pictionary.bench.HotPath;
+
+/**
+ * The client listener loop on a stream of DRAW messages: FrameReader, then
+ * CommandTable for text lines or Protocol.decodePolyline for binary frames,
+ * into a DrawQueue that the event thread drains. The loop mirrors the one in
+ * ChatClient.connectToServer, which cannot run without a window.
+ *
+ * Params: "text" or "binary", messages per operation.
+ */
+public class DrawParsePath implements HotPath {
+    private final boolean binary;
+    private final byte[] stream;
+    private final int[] points = new int[Protocol.MAX_POLYLINE_POINTS * 2];
+    private final int[] line = new int[4];
+    private final DrawQueue drawQueue = new DrawQueue(new DrawQueue.Target() {
+        public void drawPolyline(int[] xy, int offset, int pointCount, boolean erase) {}
+
+        public void clear() {}
+
+        public void drawSnapshot(BufferedImage snapshot) {}
+
+        public void beginRepaint(int x, int y, int width, int height) {}
+
+        public void endRepaint() {}
+
+        public void endBatch() {}
+    });
+    private final CommandTable commands = new CommandTable()
+            .add("DRAW ", (msg, start, end) -> {
+                int pos = CommandTable.parseInts(msg, start, end, line, 4);
+                if (pos >= 0) {
+                    drawQueue.polyline(line, 2, CommandTable.equals(msg, pos, end, " ERASE"));
+                }
+            });
+
+    public DrawParsePath(String[] params) throws IOException {
+        binary = params[0].equals("binary");
+        int messages = Integer.parseInt(params[1]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < messages; i++) {
+            int x = i % 800, y = i % 600;
+            boolean erase = i % 10 == 0;
+            Frame frame = binary
+                    ? Frame.polyline(new int[]{x, y, x + 3, y + 2}, erase)
+                    : Frame.of("DRAW " + x + " " + y + " " + (x + 3) + " " + (y + 2) + (erase ? " ERASE" : ""));
+            frame.writeTo(out, binary);
+        }
+        stream = out.toByteArray();
+    }
+
+    public Object run() throws IOException {
+        FrameReader in = new FrameReader(new ByteArrayInputStream(stream));
+        int count = 0;
+        if (!binary) {
+            int length;
+            while ((length = in.readLineBytes()) >= 0) {
+                commands.dispatch(in.frame(), 0, length);
+                count++;
+            }
+            return count;
+        }
+        int opcode;
+        while ((opcode = in.readFrame()) >= 0) {
+            if (opcode == Protocol.OP_TEXT) {
+                commands.dispatch(in.frame(), 1, in.payloadLength());
+            } else if (opcode == Protocol.OP_DRAW || opcode == Protocol.OP_ERASE) {
+                int pointCount = Protocol.decodePolyline(in.frame(), 1, in.payloadLength(), points);
+                if (pointCount > 0) {
+                    drawQueue.polyline(points, pointCount, opcode == Protocol.OP_ERASE);
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+}
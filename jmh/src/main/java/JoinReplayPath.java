@@ -0,0 +1,51 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import pictionary.bench.HotPath;
+
+/**
+ * A client joining a room whose canvas holds the given number of drawing
+ * operations since its last checkpoint: Room.join builds the catch-up frame
+ * under the room's lock, and the catch-up is written out as the joining
+ * client's writer would. Folding is disabled so the tail keeps its length.
+ *
+ * Params: operations in the canvas tail.
+ */
+public class JoinReplayPath implements HotPath {
+    static final class IdleClient extends Server.ClientHandler {
+        void wakeWriter() {
+        }
+
+        void close() {
+        }
+    }
+
+    private final Room room = new Room("bench", new CanvasCheckpoint(2000, 1200, Integer.MAX_VALUE));
+    private final Server.ClientHandler client = new IdleClient();
+    private final OutputStream out = new BufferedOutputStream(OutputStream.nullOutputStream());
+
+    public JoinReplayPath(String[] params) {
+        int operations = Integer.parseInt(params[0]);
+        for (int i = 0; i < operations; i++) {
+            int x = i % 1900;
+            int y = i / 1900 * 10 % 1100;
+            room.draw(Frame.polyline(new int[]{x, y, x + 5, y + 5, x + 10, y}, i % 10 == 0), null, false, null);
+        }
+    }
+
+    public Object run() throws IOException {
+        room.join(client, null);
+        room.leave(client);
+        // Taken off the queue the way the writer would
+        Frame catchUp = client.outbound.poll();
+        if (catchUp != null) {
+            catchUp.writeTo(out, true);
+            out.flush();
+        }
+        return catchUp;
+    }
+
+    public void close() {
+        room.close();
+    }
+}
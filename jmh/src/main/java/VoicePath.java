@@ -0,0 +1,60 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import pictionary.bench.HotPath;
+
+/**
+ * One 64 ms voice frame of a voice-like test signal, encoded or decoded.
+ * "base64" is the text VOICE_DATA path, building and taking apart the whole
+ * line the way ChatClient does; the others are the VoiceCodecs used for
+ * OP_VOICE frames.
+ *
+ * Params: "base64", "pcm", "mulaw" or "adpcm"; "encode" or "decode".
+ */
+public class VoicePath implements HotPath {
+    private static final int FRAME_BYTES = 1024;
+    private static final String PREFIX = "VOICE_DATA ";
+
+    private final VoiceCodec codec;
+    private final boolean encode;
+    private final byte[] pcm = new byte[FRAME_BYTES];
+    private final byte[] encoded;
+    private final int encodedLength;
+    private final byte[] decoded = new byte[VoiceCodec.MAX_DECODED_LENGTH];
+    private final byte[] line;
+
+    public VoicePath(String[] params) {
+        codec = params[0].equals("base64") ? null : VoiceCodec.named(params[0].toUpperCase());
+        encode = params[1].equals("encode");
+        Random random = new Random(42);
+        for (int i = 0; i < FRAME_BYTES / 2; i++) {
+            double t = i / 8000.0;
+            double value = 6000 * Math.sin(2 * Math.PI * 180 * t) + 3000 * Math.sin(2 * Math.PI * 360 * t)
+                    + random.nextGaussian() * 200;
+            int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            pcm[2 * i] = (byte) (sample >> 8);
+            pcm[2 * i + 1] = (byte) sample;
+        }
+        if (codec == null) {
+            encoded = null;
+            encodedLength = 0;
+            line = (PREFIX + "alice " + Base64.getEncoder().encodeToString(pcm)).getBytes(StandardCharsets.UTF_8);
+        } else {
+            encoded = new byte[FRAME_BYTES];
+            encodedLength = codec.encode(pcm, pcm.length, encoded);
+            line = null;
+        }
+    }
+
+    public Object run() {
+        if (codec != null) {
+            return encode ? codec.encode(pcm, pcm.length, encoded) : codec.decode(encoded, 0, encodedLength, decoded);
+        }
+        if (encode) {
+            return PREFIX + "alice " + Base64.getEncoder().encodeToString(Arrays.copyOf(pcm, pcm.length)) + "\n";
+        }
+        String[] parts = CommandTable.text(line, PREFIX.length(), line.length).split(" ", 2);
+        return Base64.getDecoder().decode(parts[1]);
+    }
+}
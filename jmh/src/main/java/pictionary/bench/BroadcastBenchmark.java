@@ -0,0 +1,36 @@
+package pictionary.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Fan-out of one DRAW to every member of a room, including each member's
+ * write. Time per broadcast should grow linearly with the member count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public String members;
+
+    private HotPath broadcast;
+
+    @Setup
+    public void setUp() {
+        broadcast = HotPath.load("BroadcastPath", members);
+    }
+
+    @Benchmark
+    public Object broadcast() throws Exception {
+        return broadcast.run();
+    }
+
+    @TearDown
+    public void tearDown() {
+        broadcast.close();
+    }
+}
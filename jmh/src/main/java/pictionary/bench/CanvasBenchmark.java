@@ -0,0 +1,44 @@
+package pictionary.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Rendering one received stroke on a headless board, tiled as the client
+ * Canvas does now or as a single RGB image.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class CanvasBenchmark {
+    @Param({"tiles", "image"})
+    public String store;
+
+    private HotPath line;
+    private HotPath polyline;
+
+    @Setup
+    public void setUp() {
+        line = HotPath.load("CanvasPath", store, "line");
+        polyline = HotPath.load("CanvasPath", store, "polyline");
+    }
+
+    @Benchmark
+    public Object drawLine() throws Exception {
+        return line.run();
+    }
+
+    @Benchmark
+    public Object drawPolyline() throws Exception {
+        return polyline.run();
+    }
+
+    @TearDown
+    public void tearDown() {
+        line.close();
+        polyline.close();
+    }
+}
@@ -0,0 +1,95 @@
+package pictionary.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH runs saved with -rf csv, benchmark by benchmark and
+ * parameter by parameter. A change smaller than the two runs' error margins
+ * together is marked as noise.
+ *
+ *   java -cp target/benchmarks.jar pictionary.bench.CompareResults before.csv after.csv
+ */
+public class CompareResults {
+    record Score(double score, double error, String unit) {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: CompareResults <before.csv> <after.csv>");
+            System.exit(1);
+        }
+        Map<String, Score> before = read(Path.of(args[0]));
+        Map<String, Score> after = read(Path.of(args[1]));
+
+        System.out.printf("%-60s %14s %14s %9s%n", "Benchmark", "before", "after", "change");
+        for (Map.Entry<String, Score> entry : after.entrySet()) {
+            Score old = before.get(entry.getKey());
+            Score now = entry.getValue();
+            if (old == null || !old.unit().equals(now.unit())) {
+                System.out.printf("%-60s %14s %14.3f %9s  %s%n", entry.getKey(), "-", now.score(), "new", now.unit());
+                continue;
+            }
+            double change = 100 * (now.score() - old.score()) / old.score();
+            boolean noise = Math.abs(now.score() - old.score()) <= old.error() + now.error();
+            System.out.printf("%-60s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), old.score(), now.score(), change,
+                    now.unit(), noise ? "  (within error)" : "");
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                System.out.printf("%-60s %14.3f %14s %9s%n", key, before.get(key).score(), "-", "gone");
+            }
+        }
+    }
+
+    // Keyed by benchmark name plus its parameters, e.g. "BroadcastBenchmark.broadcast members=100"
+    private static Map<String, Score> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int score = header.indexOf("Score");
+        int error = header.indexOf("Score Error (99.9%)");
+        int unit = header.indexOf("Unit");
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> fields = split(line);
+            StringBuilder key = new StringBuilder(fields.get(benchmark).replace("pictionary.bench.", ""));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < fields.size() && !fields.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(fields.get(i));
+                }
+            }
+            double errorValue = Double.parseDouble(fields.get(error));
+            scores.put(key.toString(), new Score(Double.parseDouble(fields.get(score)),
+                    Double.isNaN(errorValue) ? 0 : errorValue, fields.get(unit)));
+        }
+        return scores;
+    }
+
+    // JMH quotes text fields and leaves numbers bare
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,40 @@
+package pictionary.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The client listener loop on a stream of DRAW messages, text lines against
+ * binary frames, up to handing each stroke to the DrawQueue. Reported per
+ * message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class DrawParseBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private HotPath parse;
+
+    @Setup
+    public void setUp() {
+        parse = HotPath.load("DrawParsePath", format, String.valueOf(MESSAGES));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public Object parse() throws Exception {
+        return parse.run();
+    }
+
+    @TearDown
+    public void tearDown() {
+        parse.close();
+    }
+}
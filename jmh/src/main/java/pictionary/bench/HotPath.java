@@ -0,0 +1,23 @@
+package pictionary.bench;
+
+/**
+ * One hot path of the game, set up by a fixture class in the default
+ * package. JMH refuses benchmarks in the default package and a named package
+ * cannot refer to classes in it, so each benchmark loads its fixture by name
+ * and calls it through this interface. Every fork loads a single fixture
+ * class per call site, so the call is inlined like a direct one.
+ */
+public interface HotPath {
+    // One operation; the result goes to the blackhole
+    Object run() throws Exception;
+
+    default void close() {}
+
+    static HotPath load(String fixture, String... params) {
+        try {
+            return (HotPath) Class.forName(fixture).getConstructor(String[].class).newInstance((Object) params);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set up " + fixture, e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package pictionary.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building and writing the catch-up a joining client gets: the canvas
+ * operations drawn since the last checkpoint, replayed in order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class JoinReplayBenchmark {
+    @Param({"0", "512", "8192"})
+    public String operations;
+
+    private HotPath join;
+
+    @Setup
+    public void setUp() {
+        join = HotPath.load("JoinReplayPath", operations);
+    }
+
+    @Benchmark
+    public Object join() throws Exception {
+        return join.run();
+    }
+
+    @TearDown
+    public void tearDown() {
+        join.close();
+    }
+}
@@ -0,0 +1,44 @@
+package pictionary.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding and decoding one 64 ms voice frame: the base64 VOICE_DATA text
+ * line against the codecs used for binary OP_VOICE frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class VoiceBenchmark {
+    @Param({"base64", "pcm", "mulaw", "adpcm"})
+    public String encoding;
+
+    private HotPath encode;
+    private HotPath decode;
+
+    @Setup
+    public void setUp() {
+        encode = HotPath.load("VoicePath", encoding, "encode");
+        decode = HotPath.load("VoicePath", encoding, "decode");
+    }
+
+    @Benchmark
+    public Object encode() throws Exception {
+        return encode.run();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return decode.run();
+    }
+
+    @TearDown
+    public void tearDown() {
+        encode.close();
+        decode.close();
+    }
+}
@@ -0,0 +1,364 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+
+/**
+ * Bounded replacement for the unbounded draw history. Operations are kept
+ * in a short tail; once the tail reaches the fold threshold a background
+ * thread rasterizes it into a headless image with the client's stroke rules
+ * and re-encodes that image as PNG. A joiner receives the PNG plus the tail,
+ * so join cost and memory no longer grow with the session length.
+ *
+ * Every operation gets a sequence number; with a journal attached the
+ * operations and each new checkpoint image are persisted under it.
+ *
+ * Alongside the pixels, a StrokeIndex keeps every stroke since the last
+ * CLEAR as vectors. An undo takes one stroke out of it and appends the
+ * resulting repaint to the tail like any other operation, so joiners and
+ * the folder replay it in order.
+ */
+class CanvasCheckpoint {
+    private static final Metrics.Histogram foldTime = Metrics.histogram("checkpoint_fold_seconds",
+            "Time to render the tail into the checkpoint image and encode it as PNG");
+    private static final Metrics.Histogram undoTime = Metrics.histogram("undo_seconds",
+            "Time to take a stroke out of the stroke index and build the repaint of its area");
+
+    private final int width;
+    private final int height;
+    private final int foldThreshold;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ExecutorService folder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "checkpoint-folder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by lock
+    private final List<Frame> tail = new ArrayList<>();
+    private Frame snapshot;
+    private long generation;
+    private boolean folding;
+    private long sequence;
+    private DrawJournal journal;
+    private final StrokeIndex strokes;
+
+    // Only touched by the folder thread
+    private final BufferedImage image;
+    private final Graphics2D g2;
+
+    CanvasCheckpoint(int width, int height, int foldThreshold) {
+        this.width = width;
+        this.height = height;
+        this.foldThreshold = foldThreshold;
+        strokes = new StrokeIndex(width, height);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        g2 = image.createGraphics();
+        StrokeStyle.prepare(g2);
+        fillWhite();
+    }
+
+    // Drawer is who may undo the stroke this DRAW belongs to, or null for one from another node
+    void append(Frame draw, Object drawer) {
+        lock.lock();
+        try {
+            if (draw.points() != null) {
+                strokes.add(draw.points(), draw.isErase(), drawer);
+            }
+            record(draw);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes back drawer's newest stroke still on the board; returns the repaint, or null if there is none
+    Frame undo(Object drawer) {
+        lock.lock();
+        try {
+            int stroke = strokes.latest(drawer);
+            return stroke < 0 ? null : takeBack(stroke);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Another node's undo, identified by the first line of its repaint; null if no such stroke is here
+    Frame undo(String repaint) {
+        lock.lock();
+        try {
+            int stroke = strokes.find(repaint);
+            return stroke < 0 ? null : takeBack(stroke);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The drawer left the room; what they drew stays, but they can no longer take it back
+    void forget(Object drawer) {
+        lock.lock();
+        try {
+            strokes.forget(drawer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            tail.clear();
+            strokes.clear();
+            snapshot = null;
+            generation++;
+            sequence++;
+            if (journal != null) {
+                journal.clear(sequence);
+            }
+            // A federated CLEAR can race with its room being closed
+            if (!folder.isShutdown()) {
+                folder.execute(this::fillWhite);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Startup recovery: the journal's newest checkpoint image becomes the base of the board
+    void restore(long checkpointSequence, byte[] png) throws IOException {
+        BufferedImage restored = ImageIO.read(new ByteArrayInputStream(png));
+        if (restored == null) {
+            throw new IOException("Unreadable checkpoint image");
+        }
+        lock.lock();
+        try {
+            snapshot = Frame.snapshot(png);
+            sequence = checkpointSequence;
+            // The image has strokes the index never saw, and a repaint would wipe them
+            strokes.markIncomplete();
+            folder.execute(() -> g2.drawImage(restored, 0, 0, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Startup recovery: the journaled operations after the checkpoint (or after the last CLEAR)
+    void replay(boolean cleared, List<Frame> ops, long lastSequence) {
+        lock.lock();
+        try {
+            if (cleared) {
+                snapshot = null;
+                strokes.clear();
+                generation++;
+                folder.execute(this::fillWhite);
+            }
+            // Journaled repaints are replayed as written; the index only needs the stroke they took back gone
+            for (Frame op : ops) {
+                if (op.points() != null) {
+                    strokes.add(op.points(), op.isErase(), null);
+                } else if (op.region() != null) {
+                    int stroke = strokes.find(op.parts()[0].text());
+                    if (stroke >= 0) {
+                        strokes.remove(stroke);
+                    }
+                }
+            }
+            tail.clear();
+            tail.addAll(ops);
+            sequence = lastSequence;
+            scheduleFoldIfNeeded();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Operations not yet folded into the checkpoint
+    int tailSize() {
+        lock.lock();
+        try {
+            return tail.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Points of the strokes still on the board, as the index holds them
+    long strokePoints() {
+        lock.lock();
+        try {
+            return strokes.points();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long sequence() {
+        lock.lock();
+        try {
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Operations from here on are persisted; attach after recovery so replayed ones are not written twice
+    void attach(DrawJournal journal) {
+        lock.lock();
+        try {
+            this.journal = journal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Builds the catch-up frame (optional prefix, snapshot, tail), or null if
+     * there is nothing to send, and hands it to register while still holding
+     * the lock, so a joining client can queue it before any operation
+     * appended after it, and none in between is missed.
+     */
+    Frame join(Frame prefix, Consumer<Frame> register) {
+        lock.lock();
+        try {
+            List<Frame> frames = new ArrayList<>(tail.size() + 1);
+            if (snapshot != null) {
+                frames.add(snapshot);
+            }
+            frames.addAll(tail);
+            Frame catchUp = frames.isEmpty() && prefix == null ? null : Frame.concat(prefix, frames);
+            register.accept(catchUp);
+            return catchUp;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops the folder thread once the room is gone; a fold in progress finishes without rescheduling
+    void close() {
+        lock.lock();
+        try {
+            folder.shutdownNow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(Frame op) {
+        tail.add(op);
+        sequence++;
+        if (journal != null) {
+            journal.append(sequence, op);
+        }
+        scheduleFoldIfNeeded();
+    }
+
+    private Frame takeBack(int stroke) {
+        long start = System.nanoTime();
+        Frame repaint = strokes.remove(stroke);
+        record(repaint);
+        undoTime.recordSince(start);
+        return repaint;
+    }
+
+    private void scheduleFoldIfNeeded() {
+        if (!folding && tail.size() >= foldThreshold && !folder.isShutdown()) {
+            folding = true;
+            long foldGeneration = generation;
+            folder.execute(() -> fold(foldGeneration));
+        }
+    }
+
+    private void fold(long foldGeneration) {
+        Frame[] ops;
+        long foldSequence;
+        lock.lock();
+        try {
+            if (foldGeneration != generation) {
+                folding = false;
+                scheduleFoldIfNeeded();
+                return;
+            }
+            ops = tail.toArray(new Frame[0]);
+            foldSequence = sequence;
+        } finally {
+            lock.unlock();
+        }
+
+        long start = System.nanoTime();
+        for (Frame op : ops) {
+            render(op);
+        }
+        byte[] png = encodeSnapshot();
+        foldTime.recordSince(start);
+
+        lock.lock();
+        try {
+            // A CLEAR while we were rendering makes this work obsolete; its fill task runs next
+            if (foldGeneration == generation && png != null) {
+                tail.subList(0, ops.length).clear();
+                snapshot = Frame.snapshot(png);
+                if (journal != null) {
+                    journal.checkpoint(foldSequence, png);
+                }
+            }
+            folding = false;
+            scheduleFoldIfNeeded();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void render(Frame op) {
+        int[] region = op.region();
+        if (region != null) {
+            g2.setClip(region[0], region[1], region[2], region[3]);
+            g2.setColor(Color.WHITE);
+            g2.fillRect(region[0], region[1], region[2], region[3]);
+            for (Frame part : op.parts()) {
+                render(part);
+            }
+            g2.setClip(null);
+            return;
+        }
+        int[] points = op.points();
+        if (points == null) {
+            return;
+        }
+        StrokeStyle.apply(g2, op.isErase());
+        if (points.length == 4) {
+            g2.drawLine(points[0], points[1], points[2], points[3]);
+            return;
+        }
+        int pointCount = points.length / 2;
+        int[] xs = new int[pointCount];
+        int[] ys = new int[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            xs[i] = points[2 * i];
+            ys[i] = points[2 * i + 1];
+        }
+        g2.drawPolyline(xs, ys, pointCount);
+    }
+
+    private byte[] encodeSnapshot() {
+        try {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            return png.toByteArray();
+        } catch (IOException e) {
+            System.out.println("Could not encode canvas checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void fillWhite() {
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, width, height);
+    }
+}
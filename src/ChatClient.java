@@ -1,30 +1,72 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.sound.sampled.*;
 import javax.swing.Timer;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Base64;
 
 public class ChatClient extends JFrame {
+    // Collect local stroke points for this long before sending them as one polyline; 0 sends every segment
+    private static int drawBatchMs = 16;
+    // Board size in pixels, matching the server's --board, and how many canvas tiles keep their pixels
+    private static int boardWidth = 2000;
+    private static int boardHeight = 1200;
+    private static int tileCache = 256;
+    private static final Metrics.Histogram pingRtt = Metrics.histogram("ping_rtt_seconds",
+            "Round trip of PING to PONG, without the server's time between receiving and answering");
+    private static final Metrics.Histogram drawLatencyTotal = Metrics.histogram("draw_latency_seconds",
+            "Time from another player drawing a stroke to it arriving here, from the server's stamps");
+
     private Canvas canvas;
+    // Received strokes, applied by the EDT in batches
+    private DrawQueue drawQueue;
     private JTextArea chatArea;
     private JTextField chatInput;
     private JLabel pingLabel;
     private DefaultListModel<String> userListModel;
     private JList<String> userList;
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private FrameReader in;
+    // Switched once the server accepts the binary protocol; guarded by this
+    private boolean binaryOut;
+    private byte[] drawFrame = new byte[Protocol.maxPolylineFrameLength(2)];
+    private final byte[] voiceFrame = new byte[Protocol.MAX_VOICE_FRAME_LENGTH];
     private String username;
+    // Last presence version applied to userListModel, -1 until a USER_LIST arrives; EDT only
+    private long presenceVersion = -1;
     private Timer pingTimer;
-    private long lastPingTime;
+    // Answers to our sequenced PINGs give the round trip and the server's clock offset
+    private final RttTracker serverRtt = new RttTracker(64);
+    private final RttTracker.Window drawLatency = new RttTracker.Window(1024);
+    // EDT only; sequencedPings counts the ones sent as "PING seq t0"
+    private int pingSequence;
+    private int sequencedPings;
+    // Listener thread only, read by the EDT for the tooltip
+    private volatile int pongsReceived;
+    // Set once a sequenced PING is answered; until then older servers get a bare PING, timed from bareSentAt
+    private volatile boolean sequencedPongs;
+    private volatile long bareSentAt;
     private String currentCallUser = null;
+    // Group voice channel we are in; the server mixes everyone else into one stream for us
+    private String voiceChannel = null;
     private boolean isInCall = false;
+    private JButton voiceChannelBtn;
+    // Room whose canvas and chat we see; EDT only
+    private String room = "lobby";
+    private JButton roomBtn;
+    // Negotiated on CALL_ACCEPT; used by the capture thread and both receive paths
+    private volatile VoiceCodec voiceCodec = VoiceCodec.PCM;
     private AudioCapture audioCapture;
     private AudioPlayback audioPlayback;
+    // UDP voice path, set once the server hands out a relay token
+    private volatile VoiceLink voiceLink;
 
     public ChatClient() {
         setTitle("Pictionary Client");
@@ -34,7 +76,8 @@ public class ChatClient extends JFrame {
 
         // Canvas for drawing (center)
         canvas = new Canvas();
-        add(canvas, BorderLayout.CENTER);
+        drawQueue = new DrawQueue(canvas);
+        add(new JScrollPane(canvas), BorderLayout.CENTER);
 
         // Right panel for users list
         JPanel rightPanel = new JPanel(new BorderLayout());
@@ -94,7 +137,10 @@ public class ChatClient extends JFrame {
         JPanel controlsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JButton pencilBtn = new JButton("✏️ Pencil");
         JButton eraserBtn = new JButton("🧹 Eraser");
+        JButton undoBtn = new JButton("↶ Undo");
         JButton clearBtn = new JButton("Clear Canvas");
+        voiceChannelBtn = new JButton("🎧 Join Voice");
+        roomBtn = new JButton("🚪 Room: " + room);
         pingLabel = new JLabel("Ping: -- ms");
         pingLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
 
@@ -103,7 +149,10 @@ public class ChatClient extends JFrame {
 
         controlsPanel.add(pencilBtn);
         controlsPanel.add(eraserBtn);
+        controlsPanel.add(undoBtn);
         controlsPanel.add(clearBtn);
+        controlsPanel.add(voiceChannelBtn);
+        controlsPanel.add(roomBtn);
         controlsPanel.add(pingLabel);
         inputPanel.add(controlsPanel, BorderLayout.WEST);
 
@@ -132,6 +181,18 @@ public class ChatClient extends JFrame {
         sendBtn.addActionListener(e -> sendChat());
         chatInput.addActionListener(e -> sendChat());
         clearBtn.addActionListener(e -> clearCanvas());
+        undoBtn.addActionListener(e -> undo());
+        // Ctrl+Z (Cmd+Z on macOS) anywhere in the window
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+                KeyStroke.getKeyStroke(KeyEvent.VK_Z, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()), "undo");
+        getRootPane().getActionMap().put("undo", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                undo();
+            }
+        });
+        voiceChannelBtn.addActionListener(e -> toggleVoiceChannel());
+        // The dialog opens once the server answers with the current rooms
+        roomBtn.addActionListener(e -> send("ROOM_LIST"));
 
         // Connect to server
         connectToServer();
@@ -155,56 +216,65 @@ public class ChatClient extends JFrame {
             }
 
             socket = new Socket(serverIP, 1234);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new FrameReader(socket.getInputStream());
 
-            out.println("NAME " + username);
+            // Offer the binary protocol; old servers simply ignore this line
+            send(Protocol.OFFER);
+            send("NAME " + username);
 
             // Start listening thread
             new Thread(() -> {
                 try {
-                    String msg;
-                    while ((msg = in.readLine()) != null) {
-                        if (msg.equals("PONG")) {
-                            long ping = System.currentTimeMillis() - lastPingTime;
-                            SwingUtilities.invokeLater(() -> pingLabel.setText("Ping: " + ping + " ms"));
-                        } else if (msg.startsWith("DRAW ")) {
-                            String[] parts = msg.substring(5).split(" ");
-                            int x1 = Integer.parseInt(parts[0]);
-                            int y1 = Integer.parseInt(parts[1]);
-                            int x2 = Integer.parseInt(parts[2]);
-                            int y2 = Integer.parseInt(parts[3]);
-                            boolean isEraser = parts.length > 4 && parts[4].equals("ERASE");
-                            SwingUtilities.invokeLater(() -> canvas.drawLine(x1, y1, x2, y2, isEraser));
-                        } else if (msg.equals("CLEAR")) {
-                            SwingUtilities.invokeLater(() -> canvas.clear());
-                        } else if (msg.startsWith("CHAT ")) {
-                            String chatMsg = msg.substring(5);
-                            SwingUtilities.invokeLater(() -> chatArea.append(chatMsg + "\n"));
-                        } else if (msg.startsWith("USERS ")) {
-                            String userListStr = msg.substring(6);
-                            SwingUtilities.invokeLater(() -> updateUserList(userListStr));
-                        } else if (msg.startsWith("CALL_REQUEST ")) {
-                            String caller = msg.substring(13);
-                            SwingUtilities.invokeLater(() -> handleCallRequest(caller));
-                        } else if (msg.startsWith("CALL_ACCEPT ")) {
-                            String callee = msg.substring(12);
-                            SwingUtilities.invokeLater(() -> handleCallAccept(callee));
-                        } else if (msg.startsWith("CALL_REJECT ")) {
-                            String callee = msg.substring(12);
-                            SwingUtilities.invokeLater(() -> handleCallReject(callee));
-                        } else if (msg.startsWith("CALL_END ")) {
-                            String otherUser = msg.substring(9);
-                            SwingUtilities.invokeLater(() -> handleCallEnd(otherUser));
-                        } else if (msg.startsWith("VOICE_DATA ")) {
-                            String[] parts = msg.substring(11).split(" ", 2);
-                            if (parts.length == 2) {
-                                String sender = parts[0];
-                                String voiceData = parts[1];
-                                if (isInCall && sender.equals(currentCallUser)) {
-                                    playAudio(voiceData);
-                                }
+                    boolean binaryIn = false;
+                    int[] points = new int[Protocol.MAX_POLYLINE_POINTS * 2];
+                    // Server time of the next DRAW frame, if an OP_STAMP came before it
+                    long drawStamp = 0;
+                    boolean stamped = false;
+                    CommandTable commands = serverCommands();
+                    while (true) {
+                        if (!binaryIn) {
+                            int length = in.readLineBytes();
+                            if (length < 0) {
+                                break;
+                            }
+                            Metrics.received(Metrics.Op.of(in.frame(), 0, length), in.consumed());
+                            if (CommandTable.equals(in.frame(), 0, length, Protocol.OFFER)) {
+                                // Everything after the server's answer is binary
+                                binaryIn = true;
+                                switchToBinary();
+                            } else {
+                                commands.dispatch(in.frame(), 0, length);
+                            }
+                            continue;
+                        }
+
+                        int opcode = in.readFrame();
+                        if (opcode < 0) {
+                            break;
+                        }
+                        Metrics.received(Metrics.Op.ofFrame(opcode, in.frame(), 1, in.payloadLength()), in.consumed());
+                        if (opcode == Protocol.OP_TEXT) {
+                            commands.dispatch(in.frame(), 1, in.payloadLength());
+                        } else if (opcode == Protocol.OP_STAMP && in.payloadLength() == 8) {
+                            drawStamp = Protocol.readLong(in.frame(), 1);
+                            stamped = true;
+                        } else if (opcode == Protocol.OP_DRAW || opcode == Protocol.OP_ERASE) {
+                            if (stamped && serverRtt.hasOffset()) {
+                                // The stamp is on the server's clock; the offset converts it to ours
+                                long latency = System.nanoTime() - (drawStamp - serverRtt.offset());
+                                drawLatency.record(latency);
+                                drawLatencyTotal.record(latency);
                             }
+                            stamped = false;
+                            int pointCount = Protocol.decodePolyline(in.frame(), 1, in.payloadLength(), points);
+                            if (pointCount > 0) {
+                                drawQueue.polyline(points, pointCount, opcode == Protocol.OP_ERASE);
+                            }
+                        } else if (opcode == Protocol.OP_VOICE && in.payloadLength() >= 4) {
+                            receiveVoice(Protocol.voiceSequence(in.frame(), 1), in.frame(), 5, in.payloadLength() - 4);
+                        } else if (opcode == Protocol.OP_SNAPSHOT) {
+                            receiveSnapshot(Arrays.copyOfRange(in.frame(), 1, 1 + in.payloadLength()));
                         }
                     }
                 } catch (IOException e) {
@@ -218,13 +288,256 @@ public class ChatClient extends JFrame {
             chatArea.append("Connected to server as " + username + "\n");
 
             // Request initial user list
-            out.println("GET_USERS");
+            send("GET_USERS");
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Could not connect to server: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
     }
 
+    // Server commands by prefix; handlers run on the listener thread and hand UI work to the EDT
+    private CommandTable serverCommands() {
+        int[] line = new int[4];
+        int[] box = new int[4];
+        return new CommandTable()
+                .add("DRAW ", (msg, start, end) -> {
+                    // Old servers send single segments; decoded in place, no strings
+                    int pos = CommandTable.parseInts(msg, start, end, line, 4);
+                    if (pos >= 0) {
+                        drawQueue.polyline(line, 2, CommandTable.equals(msg, pos, end, " ERASE"));
+                    }
+                })
+                .add("CLEAR", (msg, start, end) -> drawQueue.clear())
+                // An undo: wipe the area, redraw the strokes that follow inside it, until REPAINT_END
+                .add("REPAINT ", (msg, start, end) -> {
+                    if (CommandTable.parseInts(msg, start, end, box, 4) >= 0) {
+                        drawQueue.repaint(box[0], box[1], box[2], box[3]);
+                    }
+                })
+                .add("REPAINT_END", (msg, start, end) -> drawQueue.endRepaint())
+                .add("PONG ", (msg, start, end) -> {
+                    // "PONG seq t0 t1 t2": our send time, then when the server received and answered it
+                    long arrived = System.nanoTime();
+                    String[] parts = CommandTable.text(msg, start, end).split(" ");
+                    if (parts.length != 4) {
+                        return;
+                    }
+                    long rtt;
+                    try {
+                        rtt = serverRtt.sample(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                                Long.parseLong(parts[3]), arrived);
+                    } catch (NumberFormatException e) {
+                        return;
+                    }
+                    pingRtt.record(rtt);
+                    sequencedPongs = true;
+                    pongsReceived++;
+                    SwingUtilities.invokeLater(this::showLatency);
+                })
+                // A server without sequenced pings: the round trip only, no clock offset
+                .add("PONG", (msg, start, end) -> {
+                    long sentAt = bareSentAt;
+                    if (sentAt != 0) {
+                        long rtt = System.nanoTime() - sentAt;
+                        serverRtt.sample(rtt);
+                        pingRtt.record(rtt);
+                        pongsReceived++;
+                        SwingUtilities.invokeLater(this::showLatency);
+                    }
+                })
+                // The server timing us; echoed straight back from the listener thread
+                .add("PROBE ", (msg, start, end) -> send("PROBE_ACK " + CommandTable.text(msg, start, end)))
+                .add("SNAPSHOT ", (msg, start, end) ->
+                        receiveSnapshot(Base64.getDecoder().decode(CommandTable.text(msg, start, end))))
+                .add("NAME ", (msg, start, end) -> {
+                    // The server renamed us because the name was taken
+                    String assigned = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> {
+                        username = assigned;
+                        chatArea.append("Name already in use, you are now " + assigned + "\n");
+                    });
+                })
+                .add("CHAT ", (msg, start, end) -> {
+                    String chatMsg = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> chatArea.append(chatMsg + "\n"));
+                })
+                .add("USERS ", (msg, start, end) -> {
+                    String userListStr = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> updateUserList(userListStr));
+                })
+                .add("USER_LIST ", (msg, start, end) -> {
+                    String[] parts = CommandTable.text(msg, start, end).split(" ", 2);
+                    long version = Long.parseLong(parts[0]);
+                    String userListStr = parts.length > 1 ? parts[1] : "";
+                    SwingUtilities.invokeLater(() -> {
+                        updateUserList(userListStr);
+                        presenceVersion = version;
+                    });
+                })
+                .add("USER_JOIN ", (msg, start, end) -> presenceDelta(CommandTable.text(msg, start, end), true))
+                .add("USER_LEAVE ", (msg, start, end) -> presenceDelta(CommandTable.text(msg, start, end), false))
+                .add("CALL_REQUEST ", (msg, start, end) -> {
+                    String caller = CommandTable.text(msg, start, end);
+                    int codecs = caller.lastIndexOf(Protocol.CODECS_OFFER);
+                    String offered = codecs < 0 ? null : caller.substring(codecs + Protocol.CODECS_OFFER.length());
+                    String callerName = codecs < 0 ? caller : caller.substring(0, codecs);
+                    SwingUtilities.invokeLater(() -> handleCallRequest(callerName, offered));
+                })
+                .add("CALL_ACCEPT ", (msg, start, end) -> {
+                    String callee = CommandTable.text(msg, start, end);
+                    int codec = callee.lastIndexOf(Protocol.CODEC_CHOSEN);
+                    VoiceCodec chosen = codec < 0 ? VoiceCodec.PCM : VoiceCodec.named(callee.substring(codec + Protocol.CODEC_CHOSEN.length()));
+                    String calleeName = codec < 0 ? callee : callee.substring(0, codec);
+                    SwingUtilities.invokeLater(() -> {
+                        voiceCodec = chosen;
+                        handleCallAccept(calleeName);
+                    });
+                })
+                .add("VOICE_JOINED ", (msg, start, end) -> {
+                    String joined = CommandTable.text(msg, start, end);
+                    int codec = joined.lastIndexOf(Protocol.CODEC_CHOSEN);
+                    VoiceCodec chosen = codec < 0 ? VoiceCodec.PCM : VoiceCodec.named(joined.substring(codec + Protocol.CODEC_CHOSEN.length()));
+                    String channel = codec < 0 ? joined : joined.substring(0, codec);
+                    SwingUtilities.invokeLater(() -> {
+                        voiceCodec = chosen;
+                        handleVoiceJoined(channel);
+                    });
+                })
+                .add("VOICE_MEMBERS ", (msg, start, end) -> {
+                    String[] parts = CommandTable.text(msg, start, end).split(" ", 2);
+                    String members = parts.length > 1 ? parts[1].replace(",", ", ") : "";
+                    SwingUtilities.invokeLater(() -> chatArea.append("Voice channel " + parts[0] + ": " + members + "\n"));
+                })
+                .add("VOICE_FULL ", (msg, start, end) -> {
+                    String channel = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> chatArea.append("Voice channel " + channel + " is full.\n"));
+                })
+                .add("ROOM ", (msg, start, end) -> {
+                    String joined = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> handleRoomJoined(joined));
+                })
+                .add("ROOMS ", (msg, start, end) -> {
+                    String rooms = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> chooseRoom(rooms));
+                })
+                .add("ROOM_FULL ", (msg, start, end) -> {
+                    String full = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> chatArea.append("Cannot open room " + full + ": the server has too many rooms.\n"));
+                })
+                .add("ROOM_INVALID ", (msg, start, end) -> {
+                    String invalid = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> chatArea.append("Invalid room name: " + invalid + "\n"));
+                })
+                .add("CALL_REJECT ", (msg, start, end) -> {
+                    String callee = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> handleCallReject(callee));
+                })
+                .add("CALL_END ", (msg, start, end) -> {
+                    String otherUser = CommandTable.text(msg, start, end);
+                    SwingUtilities.invokeLater(() -> handleCallEnd(otherUser));
+                })
+                .add("VOICE_DATA ", (msg, start, end) -> {
+                    String[] parts = CommandTable.text(msg, start, end).split(" ", 2);
+                    if (parts.length == 2) {
+                        String sender = parts[0];
+                        String voiceData = parts[1];
+                        AudioPlayback playback = audioPlayback;
+                        if (isInCall && sender.equals(currentCallUser) && playback != null) {
+                            try {
+                                byte[] encoded = Base64.getDecoder().decode(voiceData);
+                                playback.playNext(encoded, 0, encoded.length);
+                            } catch (IllegalArgumentException e) {
+                                // Silently ignore decode errors
+                            }
+                        }
+                    }
+                })
+                .add("VOICE_UDP ", (msg, start, end) -> {
+                    String[] parts = CommandTable.text(msg, start, end).split(" ");
+                    openVoiceLink(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+                });
+    }
+
+    private void presenceDelta(String args, boolean joined) {
+        String[] parts = args.split(" ", 2);
+        long version = Long.parseLong(parts[0]);
+        SwingUtilities.invokeLater(() -> applyPresence(version, parts[1], joined));
+    }
+
+    // Decodes the server's canvas checkpoint off the EDT; it is painted in order with the strokes around it
+    private void receiveSnapshot(byte[] png) {
+        try {
+            BufferedImage snapshot = ImageIO.read(new ByteArrayInputStream(png));
+            if (snapshot != null) {
+                drawQueue.snapshot(snapshot);
+            }
+        } catch (IOException e) {
+            // A broken checkpoint only costs us the old strokes
+        }
+    }
+
+    // Sends one command as a text line, or as an OP_TEXT frame once binary is negotiated
+    private synchronized void send(String msg) {
+        try {
+            byte[] bytes = binaryOut ? Protocol.encodeText(msg) : (msg + "\n").getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            out.flush();
+            Metrics.sent(Metrics.Op.of(msg), bytes.length);
+        } catch (IOException e) {
+            // The listener thread notices the broken connection
+        }
+    }
+
+    // Sends a polyline as one binary frame, or as single-segment DRAW lines to an old server
+    private synchronized void sendDraw(int[] xy, int pointCount, boolean isEraser) {
+        try {
+            if (binaryOut) {
+                int length = Protocol.encodePolyline(isEraser, xy, pointCount, drawFrame, 0);
+                out.write(drawFrame, 0, length);
+                Metrics.sent(Metrics.Op.DRAW, length);
+            } else {
+                String mode = isEraser ? " ERASE" : "";
+                for (int i = 1; i < pointCount; i++) {
+                    String line = "DRAW " + xy[2 * i - 2] + " " + xy[2 * i - 1] + " " + xy[2 * i] + " " + xy[2 * i + 1] + mode + "\n";
+                    out.write(line.getBytes(StandardCharsets.UTF_8));
+                    Metrics.sent(Metrics.Op.DRAW, line.length());
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The listener thread notices the broken connection
+        }
+    }
+
+    // Sends encoded call audio as an OP_VOICE frame, or as a base64 VOICE_DATA line to an old server
+    private synchronized void sendVoice(int sequence, byte[] audio, int length) {
+        try {
+            if (binaryOut) {
+                int frameLength = Protocol.encodeVoice(sequence, audio, length, voiceFrame);
+                out.write(voiceFrame, 0, frameLength);
+                Metrics.sent(Metrics.Op.VOICE, frameLength);
+            } else {
+                String line = "VOICE_DATA " + currentCallUser + " " + Base64.getEncoder().encodeToString(Arrays.copyOf(audio, length)) + "\n";
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                Metrics.sent(Metrics.Op.VOICE_DATA, line.length());
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error sending voice: " + e.getMessage());
+        }
+    }
+
+    private synchronized void switchToBinary() {
+        send(Protocol.READY);
+        binaryOut = true;
+        // Ask for the server's OP_STAMP ahead of each live stroke, for draw latency
+        send("STAMP_DRAWS");
+    }
+
+    private synchronized boolean serverSpeaksProtocol2() {
+        return binaryOut;
+    }
+
     private void updateUserList(String userListStr) {
         userListModel.clear();
         if (!userListStr.isEmpty()) {
@@ -237,40 +550,91 @@ public class ChatClient extends JFrame {
         }
     }
 
+    // Applies one presence delta in place; a gap in the versions means we missed one, so refetch the list
+    private void applyPresence(long version, String user, boolean joined) {
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return;
+        }
+        if (version != presenceVersion + 1) {
+            presenceVersion = -1;
+            send("GET_USERS");
+            return;
+        }
+        presenceVersion = version;
+        if (!joined) {
+            userListModel.removeElement(user);
+        } else if (!userListModel.contains(user)) {
+            userListModel.addElement(user);
+        }
+    }
+
     private void startPingMonitor() {
         pingTimer = new Timer(2000, e -> {
-            lastPingTime = System.currentTimeMillis();
-            out.println("PING");
+            // Every answer echoes its own send time, so overlapping pings cannot corrupt each other.
+            // Servers from before protocol 2, or protocol 2 servers that never answer one, only know a bare PING.
+            pingSequence++;
+            if (serverSpeaksProtocol2() && (sequencedPongs || sequencedPings < 2)) {
+                sequencedPings++;
+                send("PING " + pingSequence + " " + System.nanoTime());
+            } else {
+                bareSentAt = System.nanoTime();
+                send("PING");
+            }
+            AudioPlayback playback = audioPlayback;
+            String clock = serverRtt.hasOffset()
+                    ? String.format("<br>Server clock offset: %.3f ms, %d of %d pings unanswered",
+                    serverRtt.offset() / 1e6, pingSequence - pongsReceived, pingSequence)
+                    : "";
+            pingLabel.setToolTipText("<html>Board: " + canvas.stats() + (playback == null ? "" : "<br>Voice: " + playback.stats())
+                    + clock + "</html>");
         });
         pingTimer.start();
     }
 
+    // Median and p99 over the recent pings and received strokes; EDT only
+    private void showLatency() {
+        RttTracker.Window pings = serverRtt.recent();
+        String text = String.format("Ping: %.1f ms (p99 %.1f)", pings.quantile(0.5) / 1e6, pings.quantile(0.99) / 1e6);
+        if (drawLatency.count() > 0) {
+            text += String.format("  Draw: %.1f ms (p99 %.1f)", drawLatency.quantile(0.5) / 1e6, drawLatency.quantile(0.99) / 1e6);
+        }
+        pingLabel.setText(text);
+    }
+
     private void sendChat() {
         String msg = chatInput.getText().trim();
         if (!msg.isEmpty()) {
-            out.println("CHAT " + username + ": " + msg);
+            send("CHAT " + username + ": " + msg);
             chatInput.setText("");
         }
     }
 
     private void clearCanvas() {
-        out.println("CLEAR");
+        send("CLEAR");
         canvas.clear();
     }
 
+    // The server takes back our newest stroke and sends everyone the repaint of its area, us included
+    private void undo() {
+        canvas.finishStroke();
+        send("UNDO");
+    }
+
     private void initiateCall(String targetUser) {
         if (isInCall) {
             JOptionPane.showMessageDialog(this, "You are already in a call!", "Error", JOptionPane.WARNING_MESSAGE);
             return;
         }
         currentCallUser = targetUser;
-        out.println("CALL_REQUEST " + targetUser);
+        // Only servers that speak protocol 2 know to split the codec list off the name
+        send("CALL_REQUEST " + targetUser + (serverSpeaksProtocol2() ? Protocol.CODECS_OFFER + VoiceCodec.supported() : ""));
         chatArea.append("Calling " + targetUser + "...\n");
     }
 
-    private void handleCallRequest(String caller) {
+    // offered is the caller's codec list, or null for a client that predates codecs
+    private void handleCallRequest(String caller, String offered) {
         if (isInCall) {
-            out.println("CALL_REJECT " + caller);
+            send("CALL_REJECT " + caller);
             return;
         }
 
@@ -282,11 +646,12 @@ public class ChatClient extends JFrame {
         if (response == JOptionPane.YES_OPTION) {
             currentCallUser = caller;
             isInCall = true;
-            out.println("CALL_ACCEPT " + caller);
+            voiceCodec = offered == null ? VoiceCodec.PCM : VoiceCodec.choose(offered);
+            send("CALL_ACCEPT " + caller + (offered == null ? "" : Protocol.CODEC_CHOSEN + voiceCodec.name()));
             chatArea.append("Voice call started with " + caller + "\n");
             startVoiceChat();
         } else {
-            out.println("CALL_REJECT " + caller);
+            send("CALL_REJECT " + caller);
         }
     }
 
@@ -346,7 +711,7 @@ public class ChatClient extends JFrame {
 
     private void endCall() {
         if (isInCall && currentCallUser != null) {
-            out.println("CALL_END " + currentCallUser);
+            send("CALL_END " + currentCallUser);
             stopVoiceChat();
             isInCall = false;
             chatArea.append("Call ended with " + currentCallUser + ".\n");
@@ -354,6 +719,68 @@ public class ChatClient extends JFrame {
         }
     }
 
+    private void toggleVoiceChannel() {
+        if (voiceChannel != null) {
+            send("VOICE_LEAVE");
+            stopVoiceChat();
+            isInCall = false;
+            chatArea.append("Left voice channel " + voiceChannel + ".\n");
+            voiceChannel = null;
+            voiceChannelBtn.setText("🎧 Join Voice");
+            return;
+        }
+        if (isInCall) {
+            JOptionPane.showMessageDialog(this, "You are already in a call!", "Error", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (!serverSpeaksProtocol2()) {
+            chatArea.append("This server does not support voice channels.\n");
+            return;
+        }
+        String channel = JOptionPane.showInputDialog(this, "Voice channel:", "Join Voice", JOptionPane.QUESTION_MESSAGE);
+        if (channel != null && !channel.trim().isEmpty()) {
+            send("VOICE_JOIN " + channel.trim().replace(' ', '-') + Protocol.CODECS_OFFER + VoiceCodec.supported());
+        }
+    }
+
+    // rooms is "name:members,..." as sent in ROOMS
+    private void chooseRoom(String rooms) {
+        StringBuilder open = new StringBuilder();
+        for (String entry : rooms.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                open.append("\n  ").append(entry, 0, colon).append(" (").append(entry.substring(colon + 1)).append(")");
+            }
+        }
+        String chosen = (String) JOptionPane.showInputDialog(this, "Open rooms:" + open + "\n\nRoom to join:", "Rooms",
+                JOptionPane.QUESTION_MESSAGE, null, null, room);
+        if (chosen == null || chosen.trim().isEmpty() || chosen.trim().equals(room)) {
+            return;
+        }
+        String name = chosen.trim().replace(' ', '-');
+        send(name.equals("lobby") ? "ROOM_LEAVE" : "ROOM_JOIN " + name);
+    }
+
+    // The server follows this with CLEAR and the room's canvas
+    private void handleRoomJoined(String name) {
+        room = name;
+        roomBtn.setText("🚪 Room: " + name);
+        chatArea.append("Joined room " + name + "\n");
+    }
+
+    private void handleVoiceJoined(String channel) {
+        // A call started while the join was on its way wins
+        if (isInCall) {
+            send("VOICE_LEAVE");
+            return;
+        }
+        voiceChannel = channel;
+        isInCall = true;
+        voiceChannelBtn.setText("🎧 Leave " + channel);
+        chatArea.append("Joined voice channel " + channel + "\n");
+        startVoiceChat();
+    }
+
     private void startVoiceChat() {
         try {
             audioCapture = new AudioCapture();
@@ -363,6 +790,9 @@ public class ChatClient extends JFrame {
         } catch (Exception e) {
             chatArea.append("Error starting voice chat: " + e.getMessage() + "\n");
             endCall();
+            if (voiceChannel != null) {
+                toggleVoiceChannel();
+            }
         }
     }
 
@@ -377,14 +807,22 @@ public class ChatClient extends JFrame {
         }
     }
 
-    private void playAudio(String base64Data) {
-        if (audioPlayback != null) {
-            try {
-                byte[] audioData = Base64.getDecoder().decode(base64Data);
-                audioPlayback.play(audioData);
-            } catch (Exception e) {
-                // Silently ignore decode errors
-            }
+    // Sequenced audio from the UDP link or OP_VOICE; both only carry audio from our current call or channel
+    private void receiveVoice(int sequence, byte[] audio, int offset, int length) {
+        AudioPlayback playback = audioPlayback;
+        if (isInCall && playback != null) {
+            playback.play(sequence, audio, offset, length);
+        }
+    }
+
+    // Voice datagrams arrive on the link's own thread
+    private void openVoiceLink(int port, long token) {
+        try {
+            VoiceLink link = new VoiceLink(new InetSocketAddress(socket.getInetAddress(), port), token, this::receiveVoice);
+            link.start();
+            voiceLink = link;
+        } catch (IOException e) {
+            System.out.println("Could not open UDP voice link: " + e.getMessage());
         }
     }
 
@@ -402,13 +840,25 @@ public class ChatClient extends JFrame {
 
         public void run() {
             microphone.start();
+            // Reused for every read; the link and sendVoice copy out before returning
             byte[] buffer = new byte[1024];
+            byte[] encoded = new byte[buffer.length];
+            int sequence = 0;
 
             while (running) {
                 int bytesRead = microphone.read(buffer, 0, buffer.length);
-                if (bytesRead > 0 && isInCall && currentCallUser != null) {
-                    String encoded = Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, bytesRead));
-                    out.println("VOICE_DATA " + currentCallUser + " " + encoded);
+                if (bytesRead > 0 && isInCall && (currentCallUser != null || voiceChannel != null)) {
+                    int length = voiceCodec.encode(buffer, bytesRead, encoded);
+                    VoiceLink link = voiceLink;
+                    if (link != null && link.isReady()) {
+                        try {
+                            link.send(sequence++, encoded, length);
+                            continue;
+                        } catch (IOException e) {
+                            // Fall back to TCP for this buffer
+                        }
+                    }
+                    sendVoice(sequence++, encoded, length);
                 }
             }
         }
@@ -422,28 +872,32 @@ public class ChatClient extends JFrame {
         }
     }
 
-    // Audio playback class
+    // Audio playback class; the jitter buffer decides what the speakers get and when
     class AudioPlayback extends Thread {
+        // Keep the device's own buffer small so the jitter buffer controls latency
+        private static final int LINE_BUFFER_BYTES = 4096;
+
         private SourceDataLine speakers;
         private volatile boolean running = true;
-        private java.util.concurrent.BlockingQueue<byte[]> audioQueue;
+        private final JitterBuffer jitterBuffer;
 
         public AudioPlayback() throws LineUnavailableException {
             AudioFormat format = new AudioFormat(8000, 16, 1, true, true);
             DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
             speakers = (SourceDataLine) AudioSystem.getLine(info);
-            speakers.open(format);
-            audioQueue = new java.util.concurrent.LinkedBlockingQueue<>();
+            speakers.open(format, LINE_BUFFER_BYTES);
+            jitterBuffer = new JitterBuffer(format.getSampleRate(), format.getFrameSize());
         }
 
         public void run() {
             speakers.start();
+            byte[] audioData = new byte[VoiceCodec.MAX_DECODED_LENGTH];
 
             while (running) {
                 try {
-                    byte[] audioData = audioQueue.poll(100, java.util.concurrent.TimeUnit.MILLISECONDS);
-                    if (audioData != null) {
-                        speakers.write(audioData, 0, audioData.length);
+                    int length = jitterBuffer.poll(audioData, 100);
+                    if (length > 0) {
+                        speakers.write(audioData, 0, length);
                     }
                 } catch (InterruptedException e) {
                     break;
@@ -451,14 +905,28 @@ public class ChatClient extends JFrame {
             }
         }
 
-        public void play(byte[] audioData) {
-            try {
-                audioQueue.offer(audioData);
-            } catch (Exception e) {
-                // Silently ignore
+        // Sequenced frame from the UDP relay or OP_VOICE, decoded straight into a pooled buffer
+        public void play(int sequence, byte[] encoded, int offset, int length) {
+            JitterBuffer.VoiceFrame frame = jitterBuffer.acquire();
+            if (frame != null) {
+                frame.length = voiceCodec.decode(encoded, offset, length, frame.data);
+                jitterBuffer.offer(sequence, frame);
             }
         }
 
+        // Frame from VOICE_DATA, which TCP already delivers in order
+        public void playNext(byte[] encoded, int offset, int length) {
+            JitterBuffer.VoiceFrame frame = jitterBuffer.acquire();
+            if (frame != null) {
+                frame.length = voiceCodec.decode(encoded, offset, length, frame.data);
+                jitterBuffer.offerNext(frame);
+            }
+        }
+
+        public String stats() {
+            return jitterBuffer.stats();
+        }
+
         public void stopPlayback() {
             running = false;
             if (speakers != null) {
@@ -470,19 +938,34 @@ public class ChatClient extends JFrame {
     }
 
     // Canvas class for drawing
-    class Canvas extends JPanel {
-        private Image image;
-        private Graphics2D g2;
+    class Canvas extends JPanel implements DrawQueue.Target {
+        private final TileStore board = new TileStore(boardWidth, boardHeight, tileCache);
         private int lastX = -1, lastY = -1;
         private boolean drawMode = true; // true = pencil, false = eraser
+        // Local points not yet sent; the first one is where the previous batch ended
+        private final int[] pending = new int[Protocol.MAX_POLYLINE_POINTS * 2];
+        private int pendingCount;
+        private boolean pendingErase;
+        private final Timer batchTimer;
+        // Scratch arrays for drawPolyline, only used on the EDT
+        private int[] xs = new int[64];
+        private int[] ys = new int[64];
+        // Area drawn since the last repaint request, and a scratch rectangle to hand it over; EDT only
+        private final DirtyRegion dirty = new DirtyRegion();
+        private final Rectangle dirtyBounds = new Rectangle();
 
         public Canvas() {
             setBackground(Color.WHITE);
+            setPreferredSize(new Dimension(board.width(), board.height()));
+            batchTimer = new Timer(Math.max(1, drawBatchMs), e -> flushStroke(true));
 
             MouseAdapter ma = new MouseAdapter() {
                 public void mousePressed(MouseEvent e) {
                     lastX = e.getX();
                     lastY = e.getY();
+                    if (drawBatchMs > 0) {
+                        batchTimer.start();
+                    }
                 }
 
                 public void mouseDragged(MouseEvent e) {
@@ -490,14 +973,15 @@ public class ChatClient extends JFrame {
                     int y = e.getY();
                     if (lastX != -1 && lastY != -1) {
                         drawLine(lastX, lastY, x, y, !drawMode);
-                        String mode = drawMode ? "" : " ERASE";
-                        out.println("DRAW " + lastX + " " + lastY + " " + x + " " + y + mode);
+                        addStrokePoint(lastX, lastY, x, y);
                     }
                     lastX = x;
                     lastY = y;
                 }
 
                 public void mouseReleased(MouseEvent e) {
+                    batchTimer.stop();
+                    flushStroke(false);
                     lastX = -1;
                     lastY = -1;
                 }
@@ -508,36 +992,111 @@ public class ChatClient extends JFrame {
         }
 
         public void setDrawMode(boolean drawMode) {
+            flushStroke(false);
             this.drawMode = drawMode;
         }
 
+        // Sends what is left of the stroke in progress, so an undo right after it takes the whole stroke back
+        public void finishStroke() {
+            flushStroke(false);
+        }
+
+        private void addStrokePoint(int fromX, int fromY, int x, int y) {
+            if (pendingCount == 0) {
+                pending[0] = fromX;
+                pending[1] = fromY;
+                pendingCount = 1;
+                pendingErase = !drawMode;
+            }
+            pending[2 * pendingCount] = x;
+            pending[2 * pendingCount + 1] = y;
+            pendingCount++;
+            if (drawBatchMs <= 0 || pendingCount == Protocol.MAX_POLYLINE_POINTS) {
+                flushStroke(true);
+            }
+        }
+
+        // Sends the collected points as one polyline; a continuing stroke starts the next batch at its last point
+        private void flushStroke(boolean continuing) {
+            if (pendingCount >= 2) {
+                sendDraw(pending, pendingCount, pendingErase);
+                if (continuing) {
+                    pending[0] = pending[2 * pendingCount - 2];
+                    pending[1] = pending[2 * pendingCount - 1];
+                    pendingCount = 1;
+                    return;
+                }
+            }
+            if (!continuing) {
+                pendingCount = 0;
+            }
+        }
+
+        // Paints only the tiles under the clip, which is just the dirty region for stroke repaints
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            if (image == null) {
-                image = createImage(getWidth(), getHeight());
-                g2 = (Graphics2D) image.getGraphics();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                clear();
-            }
-            g.drawImage(image, 0, 0, null);
+            Rectangle clip = g.getClipBounds();
+            board.paint(g, clip != null ? clip : new Rectangle(0, 0, getWidth(), getHeight()));
         }
 
         public void drawLine(int x1, int y1, int x2, int y2, boolean isEraser) {
-            if (g2 != null) {
-                g2.setStroke(new BasicStroke(isEraser ? 20 : 3));
-                g2.setColor(isEraser ? Color.WHITE : Color.BLACK);
-                g2.drawLine(x1, y1, x2, y2);
-                repaint();
+            board.drawLine(x1, y1, x2, y2, isEraser);
+            dirty.add(x1, y1, x2, y2, isEraser);
+            endBatch();
+        }
+
+        // Renders a whole received polyline with one Graphics2D call per tile; the batch repaints once at the end
+        public void drawPolyline(int[] xy, int offset, int pointCount, boolean isEraser) {
+            if (xs.length < pointCount) {
+                xs = new int[pointCount];
+                ys = new int[pointCount];
+            }
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (int i = 0; i < pointCount; i++) {
+                int x = xy[offset + 2 * i];
+                int y = xy[offset + 2 * i + 1];
+                xs[i] = x;
+                ys[i] = y;
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
             }
+            board.drawPolyline(xs, ys, pointCount, isEraser);
+            dirty.add(minX, minY, maxX, maxY, isEraser);
         }
 
-        public void clear() {
-            if (g2 != null) {
-                g2.setColor(Color.WHITE);
-                g2.fillRect(0, 0, getWidth(), getHeight());
-                repaint();
+        // One repaint request for everything drawn since the last one
+        public void endBatch() {
+            if (dirty.take(dirtyBounds)) {
+                repaint(dirtyBounds);
             }
         }
+
+        public void drawSnapshot(BufferedImage snapshot) {
+            board.drawImage(snapshot);
+            dirty.take(dirtyBounds);
+            repaint();
+        }
+
+        public void beginRepaint(int x, int y, int width, int height) {
+            board.beginRepaint(x, y, width, height);
+            dirty.add(x, y, x + width - 1, y + height - 1, false);
+        }
+
+        public void endRepaint() {
+            board.endRepaint();
+        }
+
+        public void clear() {
+            board.clear();
+            dirty.take(dirtyBounds);
+            repaint();
+        }
+
+        public String stats() {
+            return board.stats();
+        }
     }
 
     // Custom cell renderer for user list with call button
@@ -589,6 +1148,32 @@ public class ChatClient extends JFrame {
     }
 
     public static void main(String[] args) {
+        drawBatchMs = Integer.parseInt(option(args, "draw-batch-ms", String.valueOf(drawBatchMs)));
+        String[] board = option(args, "board", boardWidth + "x" + boardHeight).split("x");
+        boardWidth = Integer.parseInt(board[0]);
+        boardHeight = Integer.parseInt(board[1]);
+        tileCache = Integer.parseInt(option(args, "tile-cache", String.valueOf(tileCache)));
+        // Loopback port serving the metrics as text, 0 for off
+        int metricsPort = Integer.parseInt(option(args, "metrics-port", "0"));
+        Metrics.registerJmx("client");
+        if (metricsPort > 0) {
+            try {
+                Metrics.startHttp(metricsPort);
+            } catch (IOException e) {
+                System.out.println("Could not serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
         SwingUtilities.invokeLater(() -> new ChatClient());
     }
+
+    // Reads "--name=value" style startup options
+    private static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dispatches text commands straight from the bytes they arrived in. Handlers
+ * are looked up by the first byte of the line and matched on their prefix,
+ * so a DRAW line is parsed without creating a String; handlers that need
+ * text build it from the argument bytes only.
+ *
+ * A prefix ending in a space ("DRAW ") matches any line starting with it;
+ * any other prefix ("CLEAR") must match the whole line.
+ */
+class CommandTable {
+    interface Handler {
+        // The arguments are line[start, end), after the prefix
+        void handle(byte[] line, int start, int end);
+    }
+
+    private static final class Entry {
+        final byte[] prefix;
+        final boolean exact;
+        final Handler handler;
+
+        Entry(byte[] prefix, Handler handler) {
+            this.prefix = prefix;
+            this.exact = prefix[prefix.length - 1] != ' ';
+            this.handler = handler;
+        }
+    }
+
+    private final Entry[][] byFirstByte = new Entry[128][];
+
+    CommandTable add(String prefix, Handler handler) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.US_ASCII);
+        Entry[] bucket = byFirstByte[bytes[0]];
+        bucket = bucket == null ? new Entry[1] : Arrays.copyOf(bucket, bucket.length + 1);
+        bucket[bucket.length - 1] = new Entry(bytes, handler);
+        byFirstByte[bytes[0]] = bucket;
+        return this;
+    }
+
+    // Runs the matching handler; false if no command matches
+    boolean dispatch(byte[] line, int offset, int length) {
+        if (length == 0 || line[offset] < 0) {
+            return false;
+        }
+        Entry[] bucket = byFirstByte[line[offset]];
+        if (bucket == null) {
+            return false;
+        }
+        for (Entry entry : bucket) {
+            int prefixLength = entry.prefix.length;
+            if (entry.exact ? length != prefixLength : length < prefixLength) {
+                continue;
+            }
+            if (Arrays.equals(line, offset, offset + prefixLength, entry.prefix, 0, prefixLength)) {
+                entry.handler.handle(line, offset + prefixLength, offset + length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String text(byte[] line, int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses count space-separated decimal ints from line[start, end) into
+     * dst. Returns the position after the last one, or -1 if they are
+     * missing or malformed.
+     */
+    static int parseInts(byte[] line, int start, int end, int[] dst, int count) {
+        int pos = start;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                if (pos >= end || line[pos] != ' ') {
+                    return -1;
+                }
+                pos++;
+            }
+            boolean negative = pos < end && line[pos] == '-';
+            if (negative) {
+                pos++;
+            }
+            int digitsStart = pos;
+            long value = 0;
+            while (pos < end && line[pos] >= '0' && line[pos] <= '9' && pos - digitsStart < 10) {
+                value = value * 10 + (line[pos] - '0');
+                pos++;
+            }
+            if (pos == digitsStart || value > Integer.MAX_VALUE) {
+                return -1;
+            }
+            dst[i] = (int) (negative ? -value : value);
+        }
+        return pos;
+    }
+
+    // True if line[start, end) is exactly text
+    static boolean equals(byte[] line, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (line[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,46 @@
+import java.awt.Rectangle;
+
+/**
+ * Union of the areas changed since the last repaint. Each stroke adds its
+ * bounding box widened by half the pen width (plus a pixel for
+ * antialiasing), so the canvas only recomposites what actually changed.
+ */
+final class DirtyRegion {
+    private int minX, minY, maxX, maxY;
+    private boolean empty = true;
+
+    // Grows the region by the box from (x1, y1) to (x2, y2), widened by the stroke
+    void add(int x1, int y1, int x2, int y2, boolean isEraser) {
+        int pad = StrokeStyle.pad(isEraser);
+        int left = Math.min(x1, x2) - pad;
+        int top = Math.min(y1, y2) - pad;
+        int right = Math.max(x1, x2) + pad;
+        int bottom = Math.max(y1, y2) + pad;
+        if (empty) {
+            minX = left;
+            minY = top;
+            maxX = right;
+            maxY = bottom;
+            empty = false;
+        } else {
+            minX = Math.min(minX, left);
+            minY = Math.min(minY, top);
+            maxX = Math.max(maxX, right);
+            maxY = Math.max(maxY, bottom);
+        }
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    // Copies the region into bounds and resets it; returns false if nothing changed
+    boolean take(Rectangle bounds) {
+        if (empty) {
+            return false;
+        }
+        bounds.setBounds(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        empty = true;
+        return true;
+    }
+}
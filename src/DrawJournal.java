@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Optional on-disk log of canvas operations, so a restart no longer loses
+ * the board. Every DRAW, CLEAR and undo repaint is written as a record
+ * {@code [int length][int crc32c][long sequence][binary frames]} to
+ * segment-<first sequence>.log; only a repaint spans several frames. Drawing threads only enqueue; one writer
+ * thread appends whatever has queued up and fsyncs once per batch.
+ *
+ * A CLEAR starts a new segment and deletes everything before it. A persisted
+ * checkpoint image (checkpoint-<sequence>.png) makes the segments it covers
+ * obsolete too, so startup reads the newest image and memory-maps only the
+ * records after it.
+ */
+class DrawJournal {
+    private static final int HEADER_BYTES = 16;
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int WRITE_BATCH = 4096;
+    private static final Frame CLEAR = Frame.of("CLEAR");
+    private static final Entry CLOSE = new Entry(-1, null, null);
+
+    private final Path dir;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean failed;
+    private Thread writer;
+
+    // Only touched by the writer thread (and by recover() before it starts)
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(256 * 1024);
+    private final CRC32C crc = new CRC32C();
+    private FileChannel segment;
+    private long segmentBytes;
+
+    private static final class Entry {
+        final long sequence;
+        final Frame frame;
+        final byte[] png;
+
+        Entry(long sequence, Frame frame, byte[] png) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.png = png;
+        }
+    }
+
+    DrawJournal(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * Loads the newest checkpoint image and replays every later record into
+     * canvas. Must run before the journal is attached to the canvas; returns
+     * the number of records replayed.
+     */
+    long recover(CanvasCheckpoint canvas) throws IOException {
+        long[] checkpoints = sequences("checkpoint-", ".png");
+        if (checkpoints.length > 0) {
+            long sequence = checkpoints[checkpoints.length - 1];
+            canvas.restore(sequence, Files.readAllBytes(checkpointPath(sequence)));
+        }
+
+        // Operations after the last CLEAR, handed to the canvas in one go once every segment is read
+        List<Frame> ops = new ArrayList<>();
+        long applied = canvas.sequence();
+        long replayed = 0;
+        long lastClear = -1;
+        byte[] record = new byte[1024];
+        int[] xy = new int[Protocol.MAX_POLYLINE_POINTS * 2];
+        for (long first : sequences("segment-", ".log")) {
+            Path path = segmentPath(first);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int pos = 0;
+                while (map.limit() - pos >= HEADER_BYTES) {
+                    int length = map.getInt(pos);
+                    if (length < 2 || length > Protocol.MAX_FRAME_LENGTH || map.limit() - pos - HEADER_BYTES < length) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(map.slice(pos + 8, 8 + length));
+                    if ((int) crc.getValue() != map.getInt(pos + 4)) {
+                        break;
+                    }
+                    long sequence = map.getLong(pos + 8);
+                    if (record.length < length) {
+                        record = new byte[Math.max(length, record.length * 2)];
+                    }
+                    map.get(pos + HEADER_BYTES, record, 0, length);
+                    pos += HEADER_BYTES + length;
+                    if (sequence <= applied) {
+                        // Already part of the checkpoint image
+                        continue;
+                    }
+
+                    Frame op = decode(record, length, xy);
+                    if (op == null) {
+                        System.out.println("Skipping unreadable journal record " + sequence + " in " + path.getFileName());
+                        continue;
+                    }
+                    if (op == CLEAR) {
+                        ops.clear();
+                        lastClear = sequence;
+                    } else {
+                        ops.add(op);
+                    }
+                    applied = sequence;
+                    replayed++;
+                }
+                // Only the record being written when the server died can be torn; new writes go to a new segment
+                if (pos < map.limit()) {
+                    System.out.println("Ignoring " + (map.limit() - pos) + " torn bytes at the end of " + path.getFileName());
+                }
+            }
+        }
+
+        canvas.replay(lastClear >= 0, ops, applied);
+
+        if (lastClear >= 0) {
+            compact(lastClear, lastClear);
+        } else if (checkpoints.length > 0) {
+            long checkpoint = checkpoints[checkpoints.length - 1];
+            compact(checkpoint, checkpoint + 1);
+        }
+        return replayed;
+    }
+
+    void start() {
+        writer = new Thread(this::writeLoop, "draw-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Called by the canvas under its lock, so records are queued in sequence order
+    void append(long sequence, Frame draw) {
+        if (draw.points() != null || draw.region() != null) {
+            enqueue(new Entry(sequence, draw, null));
+        }
+    }
+
+    void clear(long sequence) {
+        enqueue(new Entry(sequence, CLEAR, null));
+    }
+
+    void checkpoint(long sequence, byte[] png) {
+        enqueue(new Entry(sequence, null, png));
+    }
+
+    // Writes out everything queued so far; used by the shutdown hook
+    void close() {
+        enqueue(CLOSE);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        if (failed) {
+            return;
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Turns a record back into a DRAW frame, CLEAR or repaint; null if it does not decode
+    private static Frame decode(byte[] record, int length, int[] xy) {
+        int pos = 0;
+        while (pos < length && (record[pos] & 0x80) != 0) {
+            pos++;
+        }
+        pos++;
+        if (pos >= length) {
+            return null;
+        }
+        byte op = record[pos++];
+        if (op == Protocol.OP_DRAW || op == Protocol.OP_ERASE) {
+            int pointCount = Protocol.decodePolyline(record, pos, length - pos, xy);
+            if (pointCount < 0) {
+                return null;
+            }
+            return Frame.polyline(Arrays.copyOf(xy, pointCount * 2), op == Protocol.OP_ERASE);
+        }
+        if (op == Protocol.OP_TEXT && new String(record, pos, length - pos, StandardCharsets.UTF_8).equals("CLEAR")) {
+            return CLEAR;
+        }
+        if (op == Protocol.OP_TEXT && length - pos > StrokeIndex.REPAINT.length()
+                && new String(record, pos, StrokeIndex.REPAINT.length(), StandardCharsets.UTF_8).equals(StrokeIndex.REPAINT)) {
+            return decodeRepaint(record, length, xy);
+        }
+        return null;
+    }
+
+    // The REPAINT line, the strokes redrawn in its area and REPAINT_END, each its own frame
+    private static Frame decodeRepaint(byte[] record, int length, int[] xy) {
+        String header = null;
+        List<Frame> strokes = new ArrayList<>();
+        int pos = 0;
+        while (pos < length) {
+            int frameLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= length || shift > 28) {
+                    return null;
+                }
+                byte b = record[pos++];
+                frameLength |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (frameLength < 1 || frameLength > length - pos) {
+                return null;
+            }
+            byte op = record[pos];
+            if (op == Protocol.OP_TEXT) {
+                String text = new String(record, pos + 1, frameLength - 1, StandardCharsets.UTF_8);
+                if (header == null) {
+                    header = text;
+                } else if (text.equals(StrokeIndex.REPAINT_END)) {
+                    int[] region = StrokeIndex.region(header);
+                    return region == null ? null : Frame.repaint(header, region, strokes);
+                }
+            } else if (op == Protocol.OP_DRAW || op == Protocol.OP_ERASE) {
+                int pointCount = Protocol.decodePolyline(record, pos + 1, frameLength - 1, xy);
+                if (pointCount < 0) {
+                    return null;
+                }
+                strokes.add(Frame.polyline(Arrays.copyOf(xy, pointCount * 2), op == Protocol.OP_ERASE));
+            }
+            pos += frameLength;
+        }
+        return null;
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(WRITE_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, WRITE_BATCH - 1);
+
+                // Compaction waits until the record or image that replaces the old files is on disk
+                long keepCheckpoint = -1;
+                long firstNeeded = -1;
+                boolean closing = false;
+                for (Entry entry : batch) {
+                    if (entry == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    if (entry.png != null) {
+                        writeCheckpoint(entry);
+                        keepCheckpoint = entry.sequence;
+                        firstNeeded = Math.max(firstNeeded, entry.sequence + 1);
+                    } else {
+                        boolean isClear = entry.frame == CLEAR;
+                        if (segment == null || isClear || segmentBytes >= SEGMENT_BYTES) {
+                            rotate(entry.sequence);
+                        }
+                        writeRecord(entry);
+                        if (isClear) {
+                            keepCheckpoint = entry.sequence;
+                            firstNeeded = entry.sequence;
+                        }
+                    }
+                }
+                batch.clear();
+                if (segment != null) {
+                    flushBuffer();
+                    segment.force(false);
+                }
+                if (firstNeeded >= 0) {
+                    compact(keepCheckpoint, firstNeeded);
+                }
+                if (closing) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            failed = true;
+            queue.clear();
+            System.out.println("Draw journal disabled after write failure: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRecord(Entry entry) throws IOException {
+        ByteBuffer bytes = entry.frame.buffer(true);
+        int length = bytes.remaining();
+        if (length > Protocol.MAX_FRAME_LENGTH) {
+            // Recovery would take it for a torn record; only a repaint of a very crowded area gets here
+            System.out.println("Not journaling oversized record " + entry.sequence + " (" + length + " bytes)");
+            return;
+        }
+        if (writeBuffer.remaining() < HEADER_BYTES + length) {
+            flushBuffer();
+        }
+        if (writeBuffer.remaining() < HEADER_BYTES + length) {
+            writeLarge(entry.sequence, bytes, length);
+            return;
+        }
+        int start = writeBuffer.position();
+        writeBuffer.position(start + 8);
+        writeBuffer.putLong(entry.sequence);
+        writeBuffer.put(bytes);
+        crc.reset();
+        crc.update(writeBuffer.slice(start + 8, 8 + length));
+        writeBuffer.putInt(start, length);
+        writeBuffer.putInt(start + 4, (int) crc.getValue());
+        segmentBytes += HEADER_BYTES + length;
+    }
+
+    // A record bigger than the write buffer, written straight from its own buffer after the buffered ones
+    private void writeLarge(long sequence, ByteBuffer bytes, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.position(8);
+        record.putLong(sequence);
+        record.put(bytes);
+        crc.reset();
+        crc.update(record.slice(8, 8 + length));
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            segment.write(record);
+        }
+        segmentBytes += HEADER_BYTES + length;
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segment.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void rotate(long firstSequence) throws IOException {
+        if (segment != null) {
+            flushBuffer();
+            segment.force(false);
+            segment.close();
+        }
+        segment = FileChannel.open(segmentPath(firstSequence),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentBytes = 0;
+    }
+
+    // Written under a temporary name first so a crash never leaves a half-written image behind
+    private void writeCheckpoint(Entry entry) throws IOException {
+        Path temp = dir.resolve("checkpoint.tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer png = ByteBuffer.wrap(entry.png);
+            while (png.hasRemaining()) {
+                channel.write(png);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, checkpointPath(entry.sequence), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Deletes checkpoints older than keepCheckpoint and segments that only hold records before firstNeeded
+    private void compact(long keepCheckpoint, long firstNeeded) throws IOException {
+        for (long sequence : sequences("checkpoint-", ".png")) {
+            if (sequence < keepCheckpoint) {
+                Files.deleteIfExists(checkpointPath(sequence));
+            }
+        }
+        long[] segments = sequences("segment-", ".log");
+        for (int i = 0; i + 1 < segments.length && segments[i + 1] <= firstNeeded; i++) {
+            Files.deleteIfExists(segmentPath(segments[i]));
+        }
+    }
+
+    private long[] sequences(String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                    .mapToLong(name -> Long.parseLong(name, prefix.length(), name.length() - suffix.length(), 10))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return dir.resolve(String.format("segment-%020d.log", firstSequence));
+    }
+
+    private Path checkpointPath(long sequence) {
+        return dir.resolve(String.format("checkpoint-%020d.png", sequence));
+    }
+}
@@ -0,0 +1,217 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.swing.SwingUtilities;
+
+/**
+ * Carries decoded canvas operations from the listener thread to the Swing
+ * event thread. Operations are appended to a flat int array; only the first
+ * one since the last drain posts a runnable, and that runnable applies
+ * everything queued by then in one pass and repaints once. A replay of
+ * thousands of strokes costs the EDT a handful of events instead of one per
+ * stroke.
+ */
+class DrawQueue {
+    interface Target {
+        // Points are x0, y0, x1, y1, ... starting at xy[offset]
+        void drawPolyline(int[] xy, int offset, int pointCount, boolean erase);
+
+        void clear();
+
+        void drawSnapshot(BufferedImage snapshot);
+
+        // Wipes the area and keeps received strokes inside it until endRepaint
+        void beginRepaint(int x, int y, int width, int height);
+
+        void endRepaint();
+
+        // Called once after each drained batch
+        void endBatch();
+    }
+
+    // Each operation is [op][point count][points...]
+    private static final int OP_DRAW = 0;
+    private static final int OP_ERASE = 1;
+    private static final int OP_CLEAR = 2;
+    // The image is the next entry in the snapshot list
+    private static final int OP_SNAPSHOT = 3;
+    // An undo's area as two points, x, y and width, height; the strokes after it up to OP_REPAINT_END are clipped to it
+    private static final int OP_REPAINT = 4;
+    private static final int OP_REPAINT_END = 5;
+
+    private static final Metrics.Histogram applyTime = Metrics.histogram("draw_batch_apply_seconds",
+            "Event-thread time to apply one drained batch of canvas operations");
+    private static final Metrics.Histogram queueDelay = Metrics.histogram("draw_queue_delay_seconds",
+            "Time from the first operation of a batch being queued to the event thread draining it");
+
+    private final Target target;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Runnable drain = this::drain;
+
+    // Guarded by lock
+    private int[] filling = new int[4096];
+    private int fillingLength;
+    private List<BufferedImage> fillingSnapshots = new ArrayList<>();
+    private boolean scheduled;
+    private long scheduledNanos;
+
+    // Only touched by the EDT
+    private int[] draining = new int[4096];
+    private List<BufferedImage> drainingSnapshots = new ArrayList<>();
+
+    DrawQueue(Target target) {
+        this.target = target;
+    }
+
+    void polyline(int[] xy, int pointCount, boolean erase) {
+        lock.lock();
+        try {
+            ensureCapacity(2 + 2 * pointCount);
+            filling[fillingLength++] = erase ? OP_ERASE : OP_DRAW;
+            filling[fillingLength++] = pointCount;
+            System.arraycopy(xy, 0, filling, fillingLength, 2 * pointCount);
+            fillingLength += 2 * pointCount;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    // Drops strokes queued before it, since they would be painted over anyway; keeps the end of a repaint
+    // whose start may already have been handed to the EDT
+    void clear() {
+        lock.lock();
+        try {
+            boolean endsRepaint = queued(OP_REPAINT_END);
+            fillingLength = 0;
+            fillingSnapshots.clear();
+            if (endsRepaint) {
+                filling[fillingLength++] = OP_REPAINT_END;
+                filling[fillingLength++] = 0;
+            }
+            filling[fillingLength++] = OP_CLEAR;
+            filling[fillingLength++] = 0;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    void snapshot(BufferedImage snapshot) {
+        lock.lock();
+        try {
+            ensureCapacity(2);
+            filling[fillingLength++] = OP_SNAPSHOT;
+            filling[fillingLength++] = 0;
+            fillingSnapshots.add(snapshot);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    void repaint(int x, int y, int width, int height) {
+        lock.lock();
+        try {
+            ensureCapacity(6);
+            filling[fillingLength++] = OP_REPAINT;
+            filling[fillingLength++] = 2;
+            filling[fillingLength++] = x;
+            filling[fillingLength++] = y;
+            filling[fillingLength++] = width;
+            filling[fillingLength++] = height;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    void endRepaint() {
+        lock.lock();
+        try {
+            ensureCapacity(2);
+            filling[fillingLength++] = OP_REPAINT_END;
+            filling[fillingLength++] = 0;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    // True if an operation of this kind is waiting in filling; caller holds lock
+    private boolean queued(int kind) {
+        for (int pos = 0; pos < fillingLength; pos += 2 + 2 * filling[pos + 1]) {
+            if (filling[pos] == kind) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (filling.length - fillingLength < extra) {
+            filling = Arrays.copyOf(filling, Math.max(fillingLength + extra, filling.length * 2));
+        }
+    }
+
+    private void schedule() {
+        lock.lock();
+        try {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            scheduledNanos = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+        SwingUtilities.invokeLater(drain);
+    }
+
+    // Swaps the buffers so the listener keeps appending while the EDT paints
+    private void drain() {
+        int length;
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            queueDelay.record(start - scheduledNanos);
+            int[] ops = filling;
+            filling = draining.length >= ops.length ? draining : new int[ops.length];
+            draining = ops;
+            length = fillingLength;
+            fillingLength = 0;
+            List<BufferedImage> snapshots = fillingSnapshots;
+            fillingSnapshots = drainingSnapshots;
+            drainingSnapshots = snapshots;
+            scheduled = false;
+        } finally {
+            lock.unlock();
+        }
+
+        int snapshot = 0;
+        for (int pos = 0; pos < length; ) {
+            int op = draining[pos++];
+            int pointCount = draining[pos++];
+            if (op == OP_DRAW || op == OP_ERASE) {
+                target.drawPolyline(draining, pos, pointCount, op == OP_ERASE);
+                pos += 2 * pointCount;
+            } else if (op == OP_CLEAR) {
+                target.clear();
+            } else if (op == OP_REPAINT) {
+                target.beginRepaint(draining[pos], draining[pos + 1], draining[pos + 2], draining[pos + 3]);
+                pos += 4;
+            } else if (op == OP_REPAINT_END) {
+                target.endRepaint();
+            } else {
+                target.drawSnapshot(drainingSnapshots.get(snapshot++));
+            }
+        }
+        drainingSnapshots.clear();
+        if (length > 0) {
+            target.endBatch();
+        }
+        applyTime.recordSince(start);
+    }
+}
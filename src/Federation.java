@@ -0,0 +1,379 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Links several Server processes into one session. Every node keeps a TCP
+ * link to every other node (a full mesh) and forwards DRAW, CLEAR and CHAT
+ * from its own clients, tagged with its origin ID and a sequence number.
+ * Received operations are applied locally and never forwarded again, so
+ * nothing can loop; the sequence numbers drop anything a node has already
+ * applied, such as traffic on a second link to the same node. Numbers are
+ * taken and queued on every link under one lock, so each link carries
+ * them in increasing order and anything not above the last one applied
+ * really is a repeat. Each node
+ * also announces its users, so messages for a user on another node can be
+ * routed there.
+ *
+ * Links speak binary frames only. Every message starts with an OP_TEXT
+ * header: "HELLO node origin", "USER_AT name", "USER_GONE name",
+ * "ROUTE origin sequence user message", or "OP origin sequence room"
+ * followed by the operation as its own frame. Writes are queued and
+ * flushed in batches by a writer thread per link, so forwarding never waits
+ * for the peer.
+ */
+class Federation {
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int WRITE_BATCH = 256;
+    private static final long REDIAL_MILLIS = 1000;
+
+    final String nodeId;
+    // Node ID plus start time, so a restarted node's sequence numbers are not taken for old ones
+    private final String origin;
+    // Guarded by sendLock, which rooms take while holding their own lock
+    private long sequence;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // Held while local users change and while a new link is sent the full list
+    private final ReentrantLock presenceLock;
+    private final Set<String> localUsers;
+    private final ConcurrentHashMap<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+    private final ReentrantLock linksLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, PeerLink> usersByName = new ConcurrentHashMap<>();
+    // Highest sequence number applied per origin
+    private final ConcurrentHashMap<String, Long> applied = new ConcurrentHashMap<>();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    Federation(String nodeId, ReentrantLock presenceLock, Set<String> localUsers) {
+        this.nodeId = nodeId;
+        this.origin = nodeId + "@" + System.currentTimeMillis();
+        this.presenceLock = presenceLock;
+        this.localUsers = localUsers;
+    }
+
+    // Accepts links from nodes that list this one in their --peers
+    void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        daemon("federation-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    daemon("federation-link", () -> new PeerLink(socket, false).run());
+                } catch (IOException e) {
+                    System.out.println("Federation accept failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Keeps a link to host:port open, redialing whenever it drops
+    void dial(String host, int port) {
+        daemon("federation-dial-" + host + ":" + port, () -> {
+            String peer = null;
+            while (true) {
+                // The peer may have dialed us instead; that link is just as good
+                if (peer == null || !linksByNode.containsKey(peer)) {
+                    try {
+                        PeerLink link = new PeerLink(new Socket(host, port), true);
+                        link.run();
+                        peer = link.peerNode;
+                    } catch (IOException e) {
+                        // Not up yet; try again
+                    }
+                }
+                try {
+                    Thread.sleep(REDIAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    // An operation one of our clients drew or sent in room
+    void forward(String room, Frame op) {
+        sendLock.lock();
+        try {
+            Frame header = Frame.of("OP " + origin + " " + (++sequence) + " " + room);
+            Frame message = Frame.concat(header, List.of(op));
+            for (PeerLink link : linksByNode.values()) {
+                link.send(message);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Sends message to the node that holds user; false if no node does
+    boolean route(String user, String message) {
+        PeerLink link = usersByName.get(user);
+        if (link == null) {
+            return false;
+        }
+        sendLock.lock();
+        try {
+            link.send(Frame.of("ROUTE " + origin + " " + (++sequence) + " " + user + " " + message));
+        } finally {
+            sendLock.unlock();
+        }
+        return true;
+    }
+
+    // Called with presenceLock held whenever a local user appears or goes away
+    void userJoined(String name) {
+        broadcast(Frame.of("USER_AT " + name));
+    }
+
+    void userLeft(String name) {
+        broadcast(Frame.of("USER_GONE " + name));
+    }
+
+    boolean hasUser(String name) {
+        return usersByName.containsKey(name);
+    }
+
+    Set<String> userNames() {
+        return usersByName.keySet();
+    }
+
+    String stats() {
+        StringBuilder stats = new StringBuilder("node=" + nodeId + " remoteUsers=" + usersByName.size()
+                + " duplicates=" + duplicates.get());
+        for (PeerLink link : linksByNode.values()) {
+            stats.append(" ").append(link.peerNode).append("[").append(link.outbound.stats()).append("]");
+        }
+        return stats.toString();
+    }
+
+    private void broadcast(Frame message) {
+        for (PeerLink link : linksByNode.values()) {
+            link.send(message);
+        }
+    }
+
+    // True the first time a sequence number from origin is seen
+    private boolean fresh(String from, long messageSequence) {
+        if (from.equals(origin)) {
+            return false;
+        }
+        boolean[] fresh = new boolean[1];
+        applied.compute(from, (key, last) -> {
+            fresh[0] = last == null || messageSequence > last;
+            return fresh[0] ? messageSequence : last;
+        });
+        if (!fresh[0]) {
+            duplicates.incrementAndGet();
+        }
+        return fresh[0];
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private final class PeerLink {
+        private final Socket socket;
+        // Which end dialed decides which of two links between the same nodes survives
+        private final boolean dialed;
+        private final OutboundQueue outbound = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.SlowConsumerPolicy.DISCONNECT, 0);
+        private volatile String peerNode;
+
+        PeerLink(Socket socket, boolean dialed) {
+            this.socket = socket;
+            this.dialed = dialed;
+        }
+
+        void send(Frame message) {
+            if (outbound.offer(message) == OutboundQueue.Result.OVERFLOW) {
+                System.out.println("Dropping federation link to " + peerNode + ": " + outbound.stats());
+                close();
+            }
+        }
+
+        // Reads until the link drops, then forgets everything learned over it
+        void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                FrameReader in = new FrameReader(socket.getInputStream());
+                outbound.offer(Frame.of("HELLO " + nodeId + " " + origin));
+                daemon("federation-writer", () -> writeLoop(out));
+                while (in.readFrame() == Protocol.OP_TEXT) {
+                    String header = new String(in.frame(), 1, in.payloadLength(), StandardCharsets.UTF_8);
+                    if (!handle(header, in)) {
+                        break;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Link dropped, or the peer sent something we cannot parse
+            } finally {
+                close();
+                unregister();
+            }
+        }
+
+        // False if the link should be closed
+        private boolean handle(String header, FrameReader in) throws IOException {
+            String[] parts = header.split(" ", 5);
+            switch (parts[0]) {
+                case "HELLO":
+                    return parts.length == 3 && register(parts[1]);
+                case "USER_AT":
+                    presenceLock.lock();
+                    try {
+                        if (usersByName.put(parts[1], this) == null && !localUsers.contains(parts[1])) {
+                            Server.remotePresence(null, parts[1]);
+                        }
+                    } finally {
+                        presenceLock.unlock();
+                    }
+                    return true;
+                case "USER_GONE":
+                    presenceLock.lock();
+                    try {
+                        if (usersByName.remove(parts[1], this) && !localUsers.contains(parts[1])) {
+                            Server.remotePresence(parts[1], null);
+                        }
+                    } finally {
+                        presenceLock.unlock();
+                    }
+                    return true;
+                case "ROUTE":
+                    if (parts.length == 5 && fresh(parts[1], Long.parseLong(parts[2]))) {
+                        Server.deliver(parts[3], parts[4]);
+                    }
+                    return true;
+                case "OP":
+                    // The operation follows as its own frame
+                    int opcode = in.readFrame();
+                    if (opcode < 0 || parts.length != 4 || !fresh(parts[1], Long.parseLong(parts[2]))) {
+                        return opcode >= 0;
+                    }
+                    apply(parts[3], opcode, in.frame(), in.payloadLength());
+                    return true;
+                default:
+                    return true;
+            }
+        }
+
+        private void apply(String room, int opcode, byte[] frame, int length) {
+            if (opcode == Protocol.OP_TEXT) {
+                String text = new String(frame, 1, length, StandardCharsets.UTF_8);
+                if (text.equals("CLEAR")) {
+                    Server.remoteDraw(room, null);
+                } else if (text.startsWith("CHAT ")) {
+                    Server.remoteChat(room, text);
+                } else if (text.startsWith(StrokeIndex.REPAINT)) {
+                    Server.remoteUndo(room, text);
+                }
+            } else if (opcode == Protocol.OP_DRAW || opcode == Protocol.OP_ERASE) {
+                int pointCount = Protocol.polylinePointCount(frame, 1, length);
+                if (pointCount < 0) {
+                    return;
+                }
+                int[] points = new int[pointCount * 2];
+                if (Protocol.decodePolyline(frame, 1, length, points) == pointCount) {
+                    Server.remoteDraw(room, Frame.polyline(points, opcode == Protocol.OP_ERASE));
+                }
+            }
+        }
+
+        /**
+         * Makes this the link to node and sends it our users. If both nodes
+         * dialed each other, both ends keep the link dialed by the node with
+         * the smaller ID and close the other.
+         */
+        private boolean register(String node) {
+            if (node.equals(nodeId)) {
+                return false;
+            }
+            peerNode = node;
+            linksLock.lock();
+            try {
+                PeerLink existing = linksByNode.get(node);
+                if (existing != null) {
+                    if (dialer(existing).compareTo(dialer(this)) <= 0) {
+                        return false;
+                    }
+                    existing.close();
+                }
+                linksByNode.put(node, this);
+            } finally {
+                linksLock.unlock();
+            }
+            System.out.println("Federation link up: " + nodeId + " <-> " + node);
+            presenceLock.lock();
+            try {
+                for (String name : localUsers) {
+                    send(Frame.of("USER_AT " + name));
+                }
+            } finally {
+                presenceLock.unlock();
+            }
+            return true;
+        }
+
+        private String dialer(PeerLink link) {
+            return link.dialed ? nodeId : link.peerNode;
+        }
+
+        private void unregister() {
+            String node = peerNode;
+            if (node == null) {
+                return;
+            }
+            linksLock.lock();
+            try {
+                if (!linksByNode.remove(node, this)) {
+                    return;
+                }
+            } finally {
+                linksLock.unlock();
+            }
+            System.out.println("Federation link down: " + nodeId + " <-> " + node);
+            presenceLock.lock();
+            try {
+                for (String name : new ArrayList<>(usersByName.keySet())) {
+                    if (usersByName.remove(name, this) && !localUsers.contains(name)) {
+                        Server.remotePresence(name, null);
+                    }
+                }
+            } finally {
+                presenceLock.unlock();
+            }
+        }
+
+        // Writes everything queued so far, then flushes once
+        private void writeLoop(OutputStream out) {
+            List<Frame> batch = new ArrayList<>(WRITE_BATCH);
+            try {
+                while (outbound.drainTo(batch, WRITE_BATCH) > 0) {
+                    for (Frame frame : batch) {
+                        frame.writeTo(out, true);
+                    }
+                    batch.clear();
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void close() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+}
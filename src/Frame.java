@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One outbound message. Each wire encoding (text line or binary frame) is
+ * produced at most once, the first time a recipient speaking that protocol
+ * needs it, and the bytes are never modified afterwards, so writers share
+ * them without copying.
+ */
+final class Frame {
+    enum Kind {
+        CONTROL,
+        // DRAW lines can be dropped for a slow client and recovered by a resync
+        DRAW,
+        // VOICE_DATA and OP_VOICE are stale after a few hundred milliseconds anyway
+        VOICE
+    }
+
+    final Kind kind;
+    // Text form, or null for polylines that arrived as binary frames
+    private final String text;
+    // Polyline x0, y0, x1, y1, ... for DRAW frames
+    private final int[] points;
+    private final boolean erase;
+    private final Frame[] parts;
+    // Board area {x, y, w, h} an undo repaint wipes before redrawing its strokes
+    private final int[] region;
+    private final boolean switchesToBinary;
+    // Opaque binary payload sent as [opcode][blob], or base64 after the text command
+    private final byte opcode;
+    private final byte[] blob;
+    // For the sent-message metrics, and delivery latency measured from here
+    final Metrics.Op op;
+    final long createdNanos = System.nanoTime();
+    // When the stroke was drawn, on our clock; sent ahead of DRAW frames to clients that asked for stamps
+    private final long originNanos;
+
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+    private volatile ByteBuffer textView;
+    private volatile ByteBuffer binaryView;
+    private volatile byte[] stampedBytes;
+    private volatile ByteBuffer stampedView;
+
+    private Frame(Kind kind, String text, int[] points, boolean erase, Frame[] parts, int[] region,
+                  boolean switchesToBinary, byte opcode, byte[] blob, long originNanos) {
+        this.kind = kind;
+        this.text = text;
+        this.points = points;
+        this.erase = erase;
+        this.parts = parts;
+        this.region = region;
+        this.switchesToBinary = switchesToBinary;
+        this.opcode = opcode;
+        this.blob = blob;
+        this.originNanos = originNanos;
+        if (parts != null) {
+            op = Metrics.Op.BULK;
+        } else if (blob != null) {
+            op = opcode == Protocol.OP_VOICE ? Metrics.Op.VOICE : Metrics.Op.SNAPSHOT;
+        } else {
+            op = kind == Kind.DRAW ? Metrics.Op.DRAW : Metrics.Op.of(text);
+        }
+    }
+
+    private Frame(Kind kind, String text, int[] points, boolean erase, Frame[] parts, boolean switchesToBinary) {
+        this(kind, text, points, erase, parts, null, switchesToBinary, (byte) 0, null, System.nanoTime());
+    }
+
+    static Frame of(String message) {
+        if (message.startsWith("DRAW ")) {
+            int[] points = parseDrawLine(message);
+            if (points != null) {
+                return new Frame(Kind.DRAW, message, points, message.endsWith(" ERASE"), null, false);
+            }
+            return new Frame(Kind.DRAW, message, null, false, null, false);
+        }
+        Kind kind = message.startsWith("VOICE_DATA ") ? Kind.VOICE : Kind.CONTROL;
+        return new Frame(kind, message, null, false, null, false);
+    }
+
+    static Frame polyline(int[] points, boolean erase) {
+        return new Frame(Kind.DRAW, null, points, erase, null, false);
+    }
+
+    // A polyline whose sender drew it at originNanos, e.g. half its round trip before it reached us
+    static Frame polyline(int[] points, boolean erase, long originNanos) {
+        return new Frame(Kind.DRAW, null, points, erase, null, null, false, (byte) 0, null, originNanos);
+    }
+
+    // Checkpoint image; old clients ignore the unknown SNAPSHOT command
+    static Frame snapshot(byte[] png) {
+        return new Frame(Kind.CONTROL, "SNAPSHOT", null, false, null, null, false, Protocol.OP_SNAPSHOT, png, System.nanoTime());
+    }
+
+    // Call audio for a protocol 2 peer: [int sequence][encoded audio]
+    static Frame voice(byte[] packet) {
+        return new Frame(Kind.VOICE, "VOICE", null, false, null, null, false, Protocol.OP_VOICE, packet, System.nanoTime());
+    }
+
+    // The server's answer to a protocol offer; the writer switches to binary right after it
+    static Frame protocolAccept() {
+        return new Frame(Kind.CONTROL, Protocol.OFFER, null, false, null, true);
+    }
+
+    // Joins frames into a single control frame; each part keeps its own cached encodings
+    static Frame concat(Frame first, List<Frame> rest) {
+        int offset = first == null ? 0 : 1;
+        Frame[] parts = new Frame[offset + rest.size()];
+        if (first != null) {
+            parts[0] = first;
+        }
+        for (Frame frame : rest) {
+            parts[offset++] = frame;
+        }
+        return new Frame(Kind.CONTROL, null, null, false, parts, false);
+    }
+
+    /**
+     * An undo: the REPAINT line, the strokes to redraw inside region, and
+     * REPAINT_END. Old clients ignore both lines and just draw the strokes
+     * again.
+     */
+    static Frame repaint(String header, int[] region, List<Frame> strokes) {
+        Frame[] parts = new Frame[strokes.size() + 2];
+        parts[0] = of(header);
+        for (int i = 0; i < strokes.size(); i++) {
+            parts[i + 1] = strokes.get(i);
+        }
+        parts[parts.length - 1] = of(StrokeIndex.REPAINT_END);
+        return new Frame(Kind.CONTROL, null, null, false, parts, region, false, (byte) 0, null, System.nanoTime());
+    }
+
+    boolean switchesToBinary() {
+        return switchesToBinary;
+    }
+
+    // Polyline points of a DRAW frame, or null for anything else
+    int[] points() {
+        return points;
+    }
+
+    boolean isErase() {
+        return erase;
+    }
+
+    // Text form of the message, or null for binary polylines and joined frames
+    String text() {
+        return text;
+    }
+
+    // The area a repaint wipes, or null for anything else
+    int[] region() {
+        return region;
+    }
+
+    // Parts of a joined frame or repaint, or null
+    Frame[] parts() {
+        return parts;
+    }
+
+    // Read-only view with its own position, for gathering channel writes
+    ByteBuffer buffer(boolean binary) {
+        return buffer(binary, false);
+    }
+
+    // With stamped set, a binary DRAW frame is preceded by an OP_STAMP frame in the same buffer
+    ByteBuffer buffer(boolean binary, boolean stamped) {
+        if (binary && stamped && isStampable()) {
+            ByteBuffer view = stampedView;
+            if (view == null) {
+                view = ByteBuffer.wrap(stampedBytes()).asReadOnlyBuffer();
+                stampedView = view;
+            }
+            return view.duplicate();
+        }
+        ByteBuffer view = binary ? binaryView : textView;
+        if (view == null) {
+            view = ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+            if (binary) {
+                binaryView = view;
+            } else {
+                textView = view;
+            }
+        }
+        return view.duplicate();
+    }
+
+    // Returns the number of bytes written
+    int writeTo(OutputStream out, boolean binary) throws IOException {
+        return writeTo(out, binary, false);
+    }
+
+    int writeTo(OutputStream out, boolean binary, boolean stamped) throws IOException {
+        byte[] bytes = binary && stamped && isStampable() ? stampedBytes() : bytes(binary);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    // Live strokes only; the parts of a join catch-up go out unstamped
+    private boolean isStampable() {
+        return kind == Kind.DRAW && points != null;
+    }
+
+    private byte[] stampedBytes() {
+        byte[] bytes = stampedBytes;
+        if (bytes == null) {
+            byte[] draw = bytes(true);
+            bytes = new byte[Protocol.STAMP_FRAME_LENGTH + draw.length];
+            Protocol.encodeStamp(originNanos, bytes);
+            System.arraycopy(draw, 0, bytes, Protocol.STAMP_FRAME_LENGTH, draw.length);
+            stampedBytes = bytes;
+        }
+        return bytes;
+    }
+
+    // Racing threads may both encode; they produce identical bytes, so either copy is fine
+    private byte[] bytes(boolean binary) {
+        byte[] bytes = binary ? binaryBytes : textBytes;
+        if (bytes == null) {
+            bytes = binary ? encodeBinary() : encodeText();
+            if (binary) {
+                binaryBytes = bytes;
+            } else {
+                textBytes = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private byte[] encodeText() {
+        if (parts != null) {
+            return join(false);
+        }
+        if (blob != null) {
+            return (text + " " + Base64.getEncoder().encodeToString(blob) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        if (text != null) {
+            return (text + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        // Old clients only understand single segments
+        StringBuilder lines = new StringBuilder();
+        for (int i = 2; i < points.length; i += 2) {
+            lines.append("DRAW ").append(points[i - 2]).append(' ').append(points[i - 1])
+                    .append(' ').append(points[i]).append(' ').append(points[i + 1]);
+            lines.append(erase ? " ERASE\n" : "\n");
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] encodeBinary() {
+        if (parts != null) {
+            return join(true);
+        }
+        if (blob != null) {
+            return Protocol.encodeBlob(opcode, blob);
+        }
+        if (points != null) {
+            int pointCount = points.length / 2;
+            byte[] frame = new byte[Protocol.maxPolylineFrameLength(pointCount)];
+            int length = Protocol.encodePolyline(erase, points, pointCount, frame, 0);
+            return Arrays.copyOf(frame, length);
+        }
+        return Protocol.encodeText(text);
+    }
+
+    private byte[] join(boolean binary) {
+        int length = 0;
+        for (Frame part : parts) {
+            length += part.bytes(binary).length;
+        }
+        byte[] joined = new byte[length];
+        int offset = 0;
+        for (Frame part : parts) {
+            byte[] bytes = part.bytes(binary);
+            System.arraycopy(bytes, 0, joined, offset, bytes.length);
+            offset += bytes.length;
+        }
+        return joined;
+    }
+
+    // Parses "DRAW x1 y1 x2 y2[ ERASE]" without splitting; null if malformed
+    private static int[] parseDrawLine(String line) {
+        int[] points = new int[4];
+        int pos = 5;
+        for (int i = 0; i < 4; i++) {
+            if (pos >= line.length()) {
+                return null;
+            }
+            int end = line.indexOf(' ', pos);
+            if (end < 0) {
+                end = line.length();
+            }
+            try {
+                points[i] = Integer.parseInt(line, pos, end, 10);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            pos = end + 1;
+        }
+        return points;
+    }
+}
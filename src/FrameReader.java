@@ -0,0 +1,127 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads text lines and, once the binary protocol is negotiated, binary
+ * frames from the same buffered stream. A BufferedReader cannot be used
+ * because it would swallow the first binary bytes after the switch.
+ */
+class FrameReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[16 * 1024];
+    private int position;
+    private int limit;
+    private byte[] frame = new byte[1024];
+    private int frameLength;
+    // Bytes the last line or frame took on the wire, terminator or length prefix included
+    private int consumed;
+
+    FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Next text line without its terminator, or null at end of stream
+    String readLine() throws IOException {
+        int length = readLineBytes();
+        return length < 0 ? null : new String(frame, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Reads the next line into frame() without its terminator and returns its length, or -1 at end of stream
+    int readLineBytes() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                consumed = length;
+                return length > 0 ? trimLine(length) : -1;
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                consumed = length + 1;
+                return trimLine(length);
+            }
+            if (length == frame.length) {
+                if (length >= Protocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                frame = Arrays.copyOf(frame, length * 2);
+            }
+            frame[length++] = b;
+        }
+    }
+
+    // Reads the next binary frame and returns its opcode, or -1 at end of stream
+    int readFrame() throws IOException {
+        int length = 0;
+        int shift = 0;
+        int prefix = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            byte b = buffer[position++];
+            prefix++;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 21) {
+                throw new IOException("Frame length too large");
+            }
+        }
+        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+
+        if (frame.length < length) {
+            frame = new byte[Math.max(length, frame.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            if (position == limit && !fill()) {
+                throw new EOFException();
+            }
+            int chunk = Math.min(length - read, limit - position);
+            System.arraycopy(buffer, position, frame, read, chunk);
+            position += chunk;
+            read += chunk;
+        }
+        frameLength = length;
+        consumed = prefix + length;
+        return frame[0];
+    }
+
+    // Payload of the last frame starts at offset 1 (after the opcode); a line read by readLineBytes starts at 0
+    byte[] frame() {
+        return frame;
+    }
+
+    int payloadLength() {
+        return frameLength - 1;
+    }
+
+    // What the last readLine, readLineBytes or readFrame took off the stream, for byte counts
+    int consumed() {
+        return consumed;
+    }
+
+    private int trimLine(int length) {
+        return length > 0 && frame[length - 1] == '\r' ? length - 1 : length;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,496 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load test against a running Server. Every bot is a protocol 2
+ * client on two virtual threads, one reading and one acting: it draws
+ * short strokes, chats, and if it is one of the calling pairs places calls
+ * and streams synthetic voice at the configured rates. No Swing, dialogs or
+ * audio hardware are involved.
+ *
+ * Latencies are measured from timestamps carried in the messages
+ * themselves, so a receiving bot needs no bookkeeping from the sender:
+ * the first point of every stroke encodes System.nanoTime() in 0.1 ms units
+ * modulo the board area (which wraps after about four minutes on the
+ * default board), chat lines end in "#nanos", and voice frames start with
+ * the nanos as 8 bytes of audio. Bots share the host's monotonic clock, so
+ * this also works with several generator processes on one machine.
+ *
+ *   java LoadGenerator --bots=1000 --rooms=10 --duration=60
+ */
+public class LoadGenerator {
+    private static final long STAMP_UNIT_NANOS = 100_000;
+    // 64 ms of 8 kHz 16-bit mono, what AudioCapture reads per buffer
+    private static final int VOICE_FRAME_BYTES = 1024;
+    private static final long VOICE_INTERVAL_NANOS = 64_000_000;
+    private static final long CALL_PAUSE_NANOS = 2_000_000_000L;
+    private static final long HANDSHAKE_TIMEOUT_SECONDS = 10;
+
+    private static final Metrics.Histogram drawLatency = Metrics.histogram("load_draw_latency_seconds",
+            "Time from a bot sending a stroke to another bot receiving it");
+    private static final Metrics.Histogram chatLatency = Metrics.histogram("load_chat_latency_seconds",
+            "Time from a bot sending a chat line to a bot in the same room receiving it");
+    private static final Metrics.Histogram voiceLatency = Metrics.histogram("load_voice_latency_seconds",
+            "Time from a bot sending a voice frame to its call peer receiving it");
+    private static final LongAdder drawsSent = Metrics.counter("load_draws_sent_total", "Strokes sent by bots");
+    private static final LongAdder drawsReceived = Metrics.counter("load_draws_received_total", "Strokes received by bots");
+    private static final LongAdder chatsSent = Metrics.counter("load_chats_sent_total", "Chat lines sent by bots");
+    private static final LongAdder chatsReceived = Metrics.counter("load_chats_received_total", "Chat lines received by bots");
+    private static final LongAdder voiceSent = Metrics.counter("load_voice_sent_total", "Voice frames sent by bots");
+    private static final LongAdder voiceReceived = Metrics.counter("load_voice_received_total", "Voice frames received by bots");
+    private static final LongAdder callsPlaced = Metrics.counter("load_calls_total", "Calls the server connected");
+    private static final LongAdder bytesSent = Metrics.counter("load_bytes_sent_total", "Bytes written by bots");
+    private static final LongAdder bytesReceived = Metrics.counter("load_bytes_received_total", "Bytes read by bots");
+    private static final LongAdder disconnects = Metrics.counter("load_disconnects_total",
+            "Bots whose connection dropped before the run ended");
+    private static final LongAdder connectFailures = Metrics.counter("load_connect_failures_total",
+            "Bots that could not connect or finish the protocol handshake");
+    private static final AtomicInteger connected = new AtomicInteger();
+    // Bots still waiting for the server to answer their connect or protocol offer
+    private static final AtomicInteger connecting = new AtomicInteger();
+
+    private static String host;
+    private static int port;
+    private static int boardWidth;
+    private static int boardHeight;
+    private static int strokePoints;
+    private static double drawRate;
+    private static double chatRate;
+    private static boolean binaryVoice;
+    private static long callNanos;
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        host = Server.option(args, "host", "localhost");
+        port = Integer.parseInt(Server.option(args, "port", "1234"));
+        int botCount = Integer.parseInt(Server.option(args, "bots", "100"));
+        int roomCount = Integer.parseInt(Server.option(args, "rooms", "0"));
+        int duration = Integer.parseInt(Server.option(args, "duration", "30"));
+        int rampSeconds = Integer.parseInt(Server.option(args, "ramp", "5"));
+        drawRate = Double.parseDouble(Server.option(args, "draw-rate", "10"));
+        chatRate = Double.parseDouble(Server.option(args, "chat-rate", "0.2"));
+        strokePoints = Math.max(2, Math.min(Protocol.MAX_POLYLINE_POINTS,
+                Integer.parseInt(Server.option(args, "stroke-points", "8"))));
+        double callFraction = Double.parseDouble(Server.option(args, "call-fraction", "0"));
+        callNanos = TimeUnit.SECONDS.toNanos(Integer.parseInt(Server.option(args, "call-seconds", "20")));
+        binaryVoice = Server.option(args, "voice", "text").equals("binary");
+        String[] board = Server.option(args, "board", "2000x1200").split("x");
+        boardWidth = Integer.parseInt(board[0]);
+        boardHeight = Integer.parseInt(board[1]);
+        int reportInterval = Integer.parseInt(Server.option(args, "report-interval", "5"));
+        int metricsPort = Integer.parseInt(Server.option(args, "metrics-port", "0"));
+        if (metricsPort > 0) {
+            Metrics.startHttp(metricsPort);
+        }
+
+        // Bots come in pairs for calls: the even one of each of the first pairs calls the odd one
+        int callers = (int) (botCount * callFraction / 2);
+        List<Bot> bots = new ArrayList<>(botCount);
+        for (int i = 0; i < botCount; i++) {
+            String room = roomCount > 0 ? "load-" + (i % roomCount) : null;
+            String callee = i % 2 == 0 && i / 2 < callers && i + 1 < botCount ? "bot-" + (i + 1) : null;
+            bots.add(new Bot(i, room, callee));
+        }
+        System.out.println("Starting " + botCount + " bots against " + host + ":" + port
+                + (roomCount > 0 ? " in " + roomCount + " rooms" : " in the lobby") + ", " + callers + " calls, "
+                + drawRate + " strokes/s and " + chatRate + " chats/s per bot");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < botCount; i++) {
+            Bot bot = bots.get(i);
+            Thread.ofVirtual().name(bot.name).start(bot::run);
+            // Spread the connects over the ramp so the accept backlog does not overflow
+            long due = start + TimeUnit.SECONDS.toNanos(rampSeconds) * (i + 1) / botCount;
+            sleepUntil(due);
+        }
+
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long[] last = totals();
+        long lastReport = System.nanoTime();
+        while (System.nanoTime() < end) {
+            sleepUntil(Math.min(end, lastReport + TimeUnit.SECONDS.toNanos(Math.max(1, reportInterval))));
+            long now = System.nanoTime();
+            long[] current = totals();
+            report((now - start) / 1e9, (now - lastReport) / 1e9, last, current);
+            last = current;
+            lastReport = now;
+        }
+
+        running = false;
+        for (Bot bot : bots) {
+            bot.close();
+        }
+        finalReport((System.nanoTime() - start) / 1e9, botCount);
+        System.exit(0);
+    }
+
+    private static long[] totals() {
+        return new long[]{drawsSent.sum(), drawsReceived.sum(), chatsSent.sum(), chatsReceived.sum(),
+                voiceSent.sum(), voiceReceived.sum(), bytesSent.sum(), bytesReceived.sum()};
+    }
+
+    private static void report(double elapsed, double seconds, long[] last, long[] current) {
+        double[] rate = new double[current.length];
+        for (int i = 0; i < current.length; i++) {
+            rate[i] = (current[i] - last[i]) / seconds;
+        }
+        System.out.printf("[%5.0fs] bots %d (%d connecting), disconnects %d | sent/s: draw %.0f chat %.0f voice %.0f (%.0f KB) | "
+                        + "received/s: draw %.0f chat %.0f voice %.0f (%.0f KB) | draw p99 %.2f ms%n",
+                elapsed, connected.get(), connecting.get(), disconnects.sum(),
+                rate[0], rate[2], rate[4], rate[6] / 1024, rate[1], rate[3], rate[5], rate[7] / 1024,
+                drawLatency.quantile(0.99) / 1e6);
+    }
+
+    private static void finalReport(double seconds, int botCount) {
+        System.out.println();
+        System.out.printf("%d of %d bots connected at the end (%d still connecting), %d disconnects, %d connect failures, "
+                        + "%d calls, %.0f s%n", connected.get(), botCount, connecting.get(), disconnects.sum(),
+                connectFailures.sum(), callsPlaced.sum(), seconds);
+        System.out.printf("%-8s %12s %12s %12s %12s%n", "", "sent", "received", "sent/s", "received/s");
+        throughput("draw", drawsSent, drawsReceived, 1, seconds);
+        throughput("chat", chatsSent, chatsReceived, 1, seconds);
+        throughput("voice", voiceSent, voiceReceived, 1, seconds);
+        throughput("KB", bytesSent, bytesReceived, 1024, seconds);
+        System.out.println();
+        System.out.printf("%-8s %10s %9s %9s %9s %9s %9s %9s  (ms)%n", "latency", "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        latency("draw", drawLatency);
+        latency("chat", chatLatency);
+        latency("voice", voiceLatency);
+    }
+
+    private static void throughput(String label, LongAdder sent, LongAdder received, long unit, double seconds) {
+        System.out.printf("%-8s %12d %12d %12.0f %12.0f%n", label, sent.sum() / unit, received.sum() / unit,
+                sent.sum() / unit / seconds, received.sum() / unit / seconds);
+    }
+
+    private static void latency(String label, Metrics.Histogram histogram) {
+        System.out.printf("%-8s %10d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", label, histogram.count(),
+                histogram.mean() / 1e6, histogram.quantile(0.5) / 1e6, histogram.quantile(0.9) / 1e6,
+                histogram.quantile(0.99) / 1e6, histogram.quantile(0.999) / 1e6, histogram.max() / 1e6);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            try {
+                Thread.sleep(Duration.ofNanos(remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Board position that encodes now; the first point of every stroke
+    static int stampSlot(long nanos) {
+        return (int) Math.floorMod(nanos / STAMP_UNIT_NANOS, (long) boardWidth * boardHeight);
+    }
+
+    static long stampAge(int x, int y, long now) {
+        long area = (long) boardWidth * boardHeight;
+        return Math.floorMod(now / STAMP_UNIT_NANOS - ((long) y * boardWidth + x), area) * STAMP_UNIT_NANOS;
+    }
+
+    // Time between events of a Poisson process, or never for a zero rate
+    private static long interval(Random random, double perSecond) {
+        if (perSecond <= 0) {
+            return Long.MAX_VALUE / 2;
+        }
+        return (long) (-Math.log(1 - random.nextDouble()) / perSecond * 1e9);
+    }
+
+    static final class Bot {
+        final String name;
+        private final String room;
+        // Whom this bot calls, or null if it only answers
+        private final String callee;
+        private final Random random;
+        // Writes come from both threads; a lock rather than synchronized keeps virtual threads unpinned
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final CountDownLatch binary = new CountDownLatch(1);
+        private final byte[] drawFrame = new byte[Protocol.maxPolylineFrameLength(Protocol.MAX_POLYLINE_POINTS)];
+        private final byte[] voiceFrame = new byte[Protocol.MAX_VOICE_FRAME_LENGTH];
+        private final byte[] audio = new byte[VOICE_FRAME_BYTES];
+        private final int[] points = new int[Protocol.MAX_POLYLINE_POINTS * 2];
+        private final CommandTable commands;
+        private volatile Socket socket;
+        private OutputStream out;
+        // Set once the catch-up for our room has arrived, so replayed strokes are not timed
+        private volatile boolean measuring;
+        private volatile String callPeer;
+        private volatile long callStarted;
+        private int voiceSequence;
+
+        Bot(int index, String room, String callee) {
+            this.name = "bot-" + index;
+            this.room = room;
+            this.callee = callee;
+            this.random = new Random(index);
+            for (int i = 0; i < VOICE_FRAME_BYTES / 2; i++) {
+                int sample = (int) (4000 * Math.sin(2 * Math.PI * 220 * i / 8000.0));
+                audio[2 * i] = (byte) (sample >> 8);
+                audio[2 * i + 1] = (byte) sample;
+            }
+            commands = new CommandTable()
+                    .add("PONG", (msg, start, end) -> measuring = true)
+                    // The server timing us; echoed straight back
+                    .add("PROBE ", (msg, start, end) -> send("PROBE_ACK " + CommandTable.text(msg, start, end)))
+                    .add("CHAT ", (msg, start, end) -> {
+                        chatsReceived.increment();
+                        String chat = CommandTable.text(msg, start, end);
+                        int hash = chat.lastIndexOf('#');
+                        if (measuring && hash >= 0) {
+                            chatLatency.recordSince(Long.parseLong(chat.substring(hash + 1)));
+                        }
+                    })
+                    .add("CALL_REQUEST ", (msg, start, end) -> {
+                        String caller = CommandTable.text(msg, start, end).split(";", 2)[0];
+                        if (callPeer == null && callee == null) {
+                            callPeer = caller;
+                            send("CALL_ACCEPT " + caller + Protocol.CODEC_CHOSEN + VoiceCodec.PCM.name());
+                        } else {
+                            send("CALL_REJECT " + caller);
+                        }
+                    })
+                    .add("CALL_ACCEPT ", (msg, start, end) -> {
+                        callsPlaced.increment();
+                        callStarted = System.nanoTime();
+                        callPeer = CommandTable.text(msg, start, end).split(";", 2)[0];
+                    })
+                    .add("CALL_REJECT ", (msg, start, end) -> callPeer = null)
+                    .add("CALL_END ", (msg, start, end) -> callPeer = null)
+                    .add("VOICE_DATA ", (msg, start, end) -> {
+                        String[] parts = CommandTable.text(msg, start, end).split(" ", 2);
+                        if (parts.length == 2) {
+                            receivedVoice(Base64.getDecoder().decode(parts[1]), 0);
+                        }
+                    });
+        }
+
+        void run() {
+            connecting.incrementAndGet();
+            try {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                FrameReader in = new FrameReader(socket.getInputStream());
+                writeText(Protocol.OFFER);
+                writeText("NAME " + name);
+                Thread.ofVirtual().name(name + "-reader").start(() -> read(in));
+                if (!binary.await(HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("no protocol 2 answer");
+                }
+            } catch (IOException | InterruptedException e) {
+                connecting.decrementAndGet();
+                connectFailures.increment();
+                close();
+                return;
+            }
+            connecting.decrementAndGet();
+            connected.incrementAndGet();
+            if (room != null) {
+                send("ROOM_JOIN " + room);
+            }
+            // Answered after the catch-up, which the server queues first
+            send("PING");
+            act();
+        }
+
+        // Draws, chats and calls on schedule until the run ends
+        private void act() {
+            long now = System.nanoTime();
+            long nextDraw = now + interval(random, drawRate);
+            long nextChat = now + interval(random, chatRate);
+            long nextVoice = now + VOICE_INTERVAL_NANOS;
+            long nextCall = callee != null ? now + (long) (random.nextDouble() * CALL_PAUSE_NANOS) : Long.MAX_VALUE;
+            while (running && !socket.isClosed()) {
+                sleepUntil(Math.min(Math.min(nextDraw, nextChat), Math.min(nextVoice, nextCall)));
+                now = System.nanoTime();
+                if (now >= nextDraw) {
+                    sendStroke();
+                    // A bot that fell behind skips ahead instead of bursting to catch up
+                    nextDraw = Math.max(nextDraw, now - 1_000_000_000L) + interval(random, drawRate);
+                }
+                if (now >= nextChat) {
+                    send("CHAT " + name + ": hello #" + System.nanoTime());
+                    chatsSent.increment();
+                    nextChat = Math.max(nextChat, now - 1_000_000_000L) + interval(random, chatRate);
+                }
+                if (now >= nextVoice) {
+                    String peer = callPeer;
+                    if (peer != null) {
+                        sendVoice(peer);
+                    }
+                    nextVoice = Math.max(nextVoice + VOICE_INTERVAL_NANOS, now);
+                }
+                if (now >= nextCall) {
+                    nextCall = call(now);
+                }
+            }
+        }
+
+        // Places a call, or hangs up one that has run long enough; returns when to check again
+        private long call(long now) {
+            String peer = callPeer;
+            if (peer == null) {
+                send("CALL_REQUEST " + callee + Protocol.CODECS_OFFER + VoiceCodec.PCM.name());
+                // Retried if the answer never comes
+                return now + callNanos + CALL_PAUSE_NANOS;
+            }
+            if (now - callStarted >= callNanos) {
+                callPeer = null;
+                send("CALL_END " + peer);
+                return now + CALL_PAUSE_NANOS;
+            }
+            return callStarted + callNanos;
+        }
+
+        private void read(FrameReader in) {
+            try {
+                while (true) {
+                    int length = in.readLineBytes();
+                    if (length < 0) {
+                        throw new IOException("closed during handshake");
+                    }
+                    bytesReceived.add(length + 1);
+                    if (CommandTable.equals(in.frame(), 0, length, Protocol.OFFER)) {
+                        break;
+                    }
+                }
+                writeText(Protocol.READY);
+                binary.countDown();
+
+                int opcode;
+                while ((opcode = in.readFrame()) >= 0) {
+                    int length = in.payloadLength();
+                    bytesReceived.add(length + 1);
+                    if (opcode == Protocol.OP_DRAW || opcode == Protocol.OP_ERASE) {
+                        drawsReceived.increment();
+                        if (measuring && Protocol.decodePolyline(in.frame(), 1, length, points) > 0) {
+                            drawLatency.record(stampAge(points[0], points[1], System.nanoTime()));
+                        }
+                    } else if (opcode == Protocol.OP_TEXT) {
+                        commands.dispatch(in.frame(), 1, length);
+                    } else if (opcode == Protocol.OP_VOICE && length >= 4 + 8) {
+                        receivedVoice(in.frame(), 1 + 4);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Dropped by the server, or closed by us at the end of the run
+            }
+            if (running && binary.getCount() == 0) {
+                disconnects.increment();
+                connected.decrementAndGet();
+            }
+            close();
+        }
+
+        private void receivedVoice(byte[] data, int offset) {
+            voiceReceived.increment();
+            long sent = 0;
+            for (int i = 0; i < 8; i++) {
+                sent = sent << 8 | (data[offset + i] & 0xFF);
+            }
+            if (measuring) {
+                voiceLatency.recordSince(sent);
+            }
+        }
+
+        // A short scribble like one 16 ms batch of the client's mouse drag, starting at the timestamp
+        private void sendStroke() {
+            int slot = stampSlot(System.nanoTime());
+            int x = slot % boardWidth, y = slot / boardWidth;
+            points[0] = x;
+            points[1] = y;
+            for (int i = 1; i < strokePoints; i++) {
+                x = Math.max(0, Math.min(boardWidth - 1, x + random.nextInt(13) - 6));
+                y = Math.max(0, Math.min(boardHeight - 1, y + random.nextInt(13) - 6));
+                points[2 * i] = x;
+                points[2 * i + 1] = y;
+            }
+            boolean erase = random.nextInt(20) == 0;
+            writeLock.lock();
+            try {
+                int length = Protocol.encodePolyline(erase, points, strokePoints, drawFrame, 0);
+                write(drawFrame, length);
+                drawsSent.increment();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // One 64 ms frame of a tone, its first 8 bytes replaced by the send time
+        private void sendVoice(String peer) {
+            long now = System.nanoTime();
+            for (int i = 0; i < 8; i++) {
+                audio[i] = (byte) (now >>> (56 - 8 * i));
+            }
+            if (binaryVoice) {
+                writeLock.lock();
+                try {
+                    write(voiceFrame, Protocol.encodeVoice(voiceSequence++, audio, audio.length, voiceFrame));
+                } finally {
+                    writeLock.unlock();
+                }
+            } else {
+                send("VOICE_DATA " + peer + " " + Base64.getEncoder().encodeToString(audio));
+            }
+            voiceSent.increment();
+        }
+
+        // Text command as an OP_TEXT frame; only used after the handshake
+        private void send(String message) {
+            byte[] frame = Protocol.encodeText(message);
+            writeLock.lock();
+            try {
+                write(frame, frame.length);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void writeText(String line) throws IOException {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            writeLock.lock();
+            try {
+                out.write(bytes);
+                out.flush();
+                bytesSent.add(bytes.length);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Called with writeLock held; a failed write closes the socket and the reader counts the disconnect
+        private void write(byte[] bytes, int length) {
+            try {
+                out.write(bytes, 0, length);
+                out.flush();
+                bytesSent.add(length);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+}
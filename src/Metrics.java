@@ -0,0 +1,479 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Process-wide counters, gauges and latency histograms. Recording is a
+ * LongAdder or atomic array increment, so it takes no lock, allocates
+ * nothing and can stay on in production; all formatting happens when the
+ * metrics are read. They are published as JMX attributes of
+ * pictionary:type=Metrics and, with --metrics-port, as plain text at
+ * http://127.0.0.1:port/metrics in the Prometheus exposition format.
+ *
+ * Metrics are registered once at startup; registering takes a lock,
+ * recording never does.
+ */
+final class Metrics {
+    // What a message is, by its text command or binary opcode
+    enum Op {
+        DRAW("DRAW "),
+        CLEAR("CLEAR"),
+        CHAT("CHAT "),
+        VOICE_DATA("VOICE_DATA "),
+        VOICE,
+        SNAPSHOT("SNAPSHOT "),
+        PING("PING", "PONG", "PROBE"),
+        PRESENCE("NAME ", "USER", "GET_USERS"),
+        CALL("CALL_", "VOICE_"),
+        ROOM("ROOM"),
+        // Join replays and resyncs, queued as one entry
+        BULK,
+        OTHER;
+
+        private final String[] prefixes;
+
+        Op(String... prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        static Op of(String message) {
+            for (Op op : VALUES) {
+                for (String prefix : op.prefixes) {
+                    if (message.startsWith(prefix)) {
+                        return op;
+                    }
+                }
+            }
+            return OTHER;
+        }
+
+        static Op of(byte[] line, int offset, int length) {
+            for (Op op : VALUES) {
+                for (String prefix : op.prefixes) {
+                    if (startsWith(line, offset, length, prefix)) {
+                        return op;
+                    }
+                }
+            }
+            return OTHER;
+        }
+
+        // A binary frame; payload is frame[offset, offset + length) after the opcode
+        static Op ofFrame(int opcode, byte[] frame, int offset, int length) {
+            if (opcode == Protocol.OP_DRAW || opcode == Protocol.OP_ERASE) {
+                return DRAW;
+            }
+            if (opcode == Protocol.OP_VOICE) {
+                return VOICE;
+            }
+            if (opcode == Protocol.OP_SNAPSHOT) {
+                return SNAPSHOT;
+            }
+            return opcode == Protocol.OP_TEXT ? of(frame, offset, length) : OTHER;
+        }
+
+        private static boolean startsWith(byte[] line, int offset, int length, String prefix) {
+            if (length < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (line[offset + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static final Op[] VALUES = values();
+    }
+
+    /**
+     * Latency histogram with log-linear buckets in the style of
+     * HdrHistogram: 16 linear sub-buckets per power of two, so any recorded
+     * value is reported within 1/16 (about 6%) of itself, from 1 ns up to
+     * about 18 minutes. Values are nanoseconds.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        // Time since startNanos, a System.nanoTime() reading
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        // Upper edge of the bucket holding the q-th quantile, capped at the largest value seen
+        long quantile(double q) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperEdge(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperEdge(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+
+    // One exported series: a counter, gauge, histogram or labelled family
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        // Prometheus text lines, without HELP and TYPE
+        abstract void write(StringBuilder out);
+
+        // JMX attributes
+        abstract void flatten(BiConsumer<String, Long> out);
+    }
+
+    private static final ReentrantLock registration = new ReentrantLock();
+    private static final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    private static final int OPS = Op.values().length;
+    private static final LongAdder[] received = adders();
+    private static final LongAdder[] receivedBytes = adders();
+    private static final LongAdder[] sent = adders();
+    private static final LongAdder[] sentBytes = adders();
+
+    static {
+        perOp("messages_received_total", "Messages received, by command", received);
+        perOp("bytes_received_total", "Bytes received, by command", receivedBytes);
+        perOp("messages_sent_total", "Messages written to sockets, by command", sent);
+        perOp("bytes_sent_total", "Bytes written to sockets, by command", sentBytes);
+    }
+
+    private Metrics() {
+    }
+
+    static void received(Op op, int bytes) {
+        received[op.ordinal()].increment();
+        receivedBytes[op.ordinal()].add(bytes);
+    }
+
+    static void sent(Op op, int bytes) {
+        sent[op.ordinal()].increment();
+        sentBytes[op.ordinal()].add(bytes);
+    }
+
+    static LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        register(new Metric(name, help) {
+            String type() {
+                return "counter";
+            }
+
+            void write(StringBuilder out) {
+                out.append(name).append(' ').append(adder.sum()).append('\n');
+            }
+
+            void flatten(BiConsumer<String, Long> out) {
+                out.accept(name, adder.sum());
+            }
+        });
+        return adder;
+    }
+
+    // Read only when the metrics are, so value may take locks
+    static void gauge(String name, String help, LongSupplier value) {
+        register(new Metric(name, help) {
+            String type() {
+                return "gauge";
+            }
+
+            void write(StringBuilder out) {
+                out.append(name).append(' ').append(value.getAsLong()).append('\n');
+            }
+
+            void flatten(BiConsumer<String, Long> out) {
+                out.accept(name, value.getAsLong());
+            }
+        });
+    }
+
+    /**
+     * A gauge per label value, such as one outbound queue depth per client.
+     * Scraped as name{label="value"}; JMX only gets the total and the
+     * largest value, since the label set changes.
+     */
+    static void gaugeFamily(String name, String help, String label, Consumer<BiConsumer<String, Long>> values) {
+        register(new Metric(name, help) {
+            String type() {
+                return "gauge";
+            }
+
+            void write(StringBuilder out) {
+                values.accept((key, value) -> out.append(name).append('{').append(label).append("=\"")
+                        .append(key.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"} ").append(value).append('\n'));
+            }
+
+            void flatten(BiConsumer<String, Long> out) {
+                long[] totalAndMax = new long[2];
+                values.accept((key, value) -> {
+                    totalAndMax[0] += value;
+                    totalAndMax[1] = Math.max(totalAndMax[1], value);
+                });
+                out.accept(name + "_total", totalAndMax[0]);
+                out.accept(name + "_max", totalAndMax[1]);
+            }
+        });
+    }
+
+    // Exported in seconds as a summary with p50, p90, p99 and p99.9
+    static Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        register(new Metric(name, help) {
+            String type() {
+                return "summary";
+            }
+
+            void write(StringBuilder out) {
+                for (double q : QUANTILES) {
+                    out.append(name).append("{quantile=\"").append(q).append("\"} ")
+                            .append(seconds(histogram.quantile(q))).append('\n');
+                }
+                out.append(name).append("_max ").append(seconds(histogram.max())).append('\n');
+                out.append(name).append("_sum ").append(seconds(histogram.sum.sum())).append('\n');
+                out.append(name).append("_count ").append(histogram.count()).append('\n');
+            }
+
+            void flatten(BiConsumer<String, Long> out) {
+                out.accept(name + "_count", histogram.count());
+                out.accept(name + "_mean_nanos", histogram.mean());
+                out.accept(name + "_p50_nanos", histogram.quantile(0.5));
+                out.accept(name + "_p99_nanos", histogram.quantile(0.99));
+                out.accept(name + "_p999_nanos", histogram.quantile(0.999));
+                out.accept(name + "_max_nanos", histogram.max());
+            }
+        });
+        return histogram;
+    }
+
+    // Every metric in the Prometheus text format
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : snapshot()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    // Serves scrape() at /metrics on the loopback interface only
+    static void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Metrics at http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/metrics");
+    }
+
+    // Publishes every metric as a read-only attribute of pictionary:type=Metrics,name=<process>
+    static void registerJmx(String process) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(),
+                    new ObjectName("pictionary:type=Metrics,name=" + process));
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[OPS];
+        for (int i = 0; i < OPS; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static void perOp(String name, String help, LongAdder[] adders) {
+        register(new Metric(name, help) {
+            String type() {
+                return "counter";
+            }
+
+            void write(StringBuilder out) {
+                for (Op op : Op.values()) {
+                    out.append(name).append("{op=\"").append(op).append("\"} ").append(adders[op.ordinal()].sum()).append('\n');
+                }
+            }
+
+            void flatten(BiConsumer<String, Long> out) {
+                for (Op op : Op.values()) {
+                    out.accept(name + "_" + op, adders[op.ordinal()].sum());
+                }
+            }
+        });
+    }
+
+    private static void register(Metric metric) {
+        registration.lock();
+        try {
+            if (metrics.putIfAbsent(metric.name, metric) != null) {
+                throw new IllegalStateException("Metric registered twice: " + metric.name);
+            }
+        } finally {
+            registration.unlock();
+        }
+    }
+
+    private static List<Metric> snapshot() {
+        registration.lock();
+        try {
+            return new ArrayList<>(metrics.values());
+        } finally {
+            registration.unlock();
+        }
+    }
+
+    private static Map<String, Long> flatten() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Metric metric : snapshot()) {
+            metric.flatten(values::put);
+        }
+        return values;
+    }
+
+    // Attributes are rebuilt from the current metrics on every read
+    private static final class MBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = flatten().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = flatten();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        // The MBeanInfo lists no operations
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : flatten().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Pictionary metrics", attributes.toArray(new MBeanAttributeInfo[0]),
+                    null, null, null);
+        }
+    }
+}
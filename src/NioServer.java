@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking server mode: the main thread accepts connections and hands
+ * them round-robin to a small pool of selector loops. Each loop frames lines
+ * out of a direct read buffer and runs the same ClientHandler protocol logic
+ * as the thread-per-client mode.
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_MESSAGE_LENGTH = Protocol.MAX_FRAME_LENGTH;
+    private static final int MAX_GATHER = 32;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    NioServer(int port, int ioThreads) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            loops[i].thread = thread;
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("New client connected: " + channel.socket().getInetAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Closed handlers whose onDisconnect() still has to run; close() may be called with a room's lock held
+        private final Queue<NioClientHandler> pendingDisconnects = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+        // Scratch space for decoding lines and frames, only touched by the loop thread
+        private byte[] scratch = new byte[1024];
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(NioClientHandler handler) {
+            pendingWrites.add(handler);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void scheduleDisconnect(NioClientHandler handler) {
+            pendingDisconnects.add(handler);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println("Selector failed: " + e.getMessage());
+                    return;
+                }
+
+                SocketChannel channel;
+                while ((channel = pendingRegistrations.poll()) != null) {
+                    try {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new NioClientHandler(this, channel, key));
+                    } catch (IOException e) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {}
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioClientHandler handler = (NioClientHandler) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        handler.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        handler.flush();
+                    }
+                }
+
+                NioClientHandler handler;
+                while ((handler = pendingWrites.poll()) != null) {
+                    handler.flush();
+                }
+                // Outside any handler, so leaving the room takes roomsLock before the room's lock like everyone else
+                while ((handler = pendingDisconnects.poll()) != null) {
+                    handler.disconnected();
+                }
+            }
+        }
+
+        byte[] scratch(int length) {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            return scratch;
+        }
+    }
+
+    private static class NioClientHandler extends Server.ClientHandler {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Frames handed to the last gathering write; unfinished ones carry over until the socket is writable
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private int gatherCount;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        NioClientHandler(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void wakeWriter() {
+            if (!closed.get() && writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        void read() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            int position = readBuffer.position();
+            while (true) {
+                // The input switches from lines to frames in the middle of a read
+                int consumed = binaryInput ? nextFrame(position) : nextLine(position);
+                if (consumed <= 0) {
+                    break;
+                }
+                position += consumed;
+                if (closed.get()) {
+                    return;
+                }
+            }
+            if (closed.get()) {
+                return;
+            }
+            readBuffer.position(position);
+            readBuffer.compact();
+
+            // A single message filled the whole buffer; grow it up to the message limit
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_MESSAGE_LENGTH) {
+                    System.out.println("Message too long from " + getClientName());
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        // Handles one complete line at start and returns the bytes consumed, or 0 if incomplete
+        private int nextLine(int start) {
+            int limit = readBuffer.limit();
+            for (int i = start; i < limit; i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    int length = end - start;
+                    byte[] bytes = loop.scratch(length);
+                    readBuffer.get(start, bytes, 0, length);
+                    try {
+                        handleMessage(new String(bytes, 0, length, StandardCharsets.UTF_8), i + 1 - start);
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    }
+                    return i + 1 - start;
+                }
+            }
+            return 0;
+        }
+
+        // Handles one complete binary frame at start and returns the bytes consumed, or 0 if incomplete
+        private int nextFrame(int start) {
+            int limit = readBuffer.limit();
+            int length = 0;
+            int pos = start;
+            for (int shift = 0; ; shift += 7) {
+                if (pos == limit) {
+                    return 0;
+                }
+                byte b = readBuffer.get(pos++);
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (shift >= 21) {
+                    fail(new IllegalStateException("Frame length too large"));
+                    return -1;
+                }
+            }
+            if (length < 1 || length > MAX_MESSAGE_LENGTH) {
+                fail(new IllegalStateException("Bad frame length " + length));
+                return -1;
+            }
+            if (limit - pos < length) {
+                return 0;
+            }
+            byte[] bytes = loop.scratch(length);
+            readBuffer.get(pos, bytes, 0, length);
+            try {
+                handleFrame(bytes, length, pos + length - start);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            return pos + length - start;
+        }
+
+        private void fail(Exception e) {
+            System.out.println("Error handling message from " + getClientName() + ": " + e);
+            close();
+        }
+
+        // Runs on the loop thread; leaves OP_WRITE set while the socket is full
+        void flush() {
+            writeScheduled.set(false);
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    Frame frame;
+                    while (gatherCount < MAX_GATHER && (frame = outbound.poll()) != null) {
+                        ByteBuffer bytes = frame.buffer(encodingFor(frame), stampDraws);
+                        recordSent(frame, bytes.remaining());
+                        gather[gatherCount++] = bytes;
+                    }
+                    if (gatherCount == 0) {
+                        break;
+                    }
+                    channel.write(gather, 0, gatherCount);
+
+                    int done = 0;
+                    while (done < gatherCount && !gather[done].hasRemaining()) {
+                        done++;
+                    }
+                    System.arraycopy(gather, done, gather, 0, gatherCount - done);
+                    Arrays.fill(gather, gatherCount - done, gatherCount, null);
+                    gatherCount -= done;
+                    if (gatherCount > 0) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                resyncIfNeeded();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Only drops the connection; the loop runs onDisconnect() once it is back at the top
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            // Broadcasts until then find the queue closed instead of overflowing it again
+            outbound.close();
+            loop.scheduleDisconnect(this);
+        }
+
+        void disconnected() {
+            System.out.println("Client disconnected: " + getClientName());
+            onDisconnect();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client send queue. Producers (broadcasts, forwards) only ever
+ * enqueue; a single writer per client drains it to the socket, so a client
+ * with a full TCP send buffer can no longer stall everyone else.
+ */
+class OutboundQueue {
+    enum SlowConsumerPolicy {
+        // Drop VOICE_DATA, then stale DRAW lines, and disconnect if the client stays behind
+        DROP,
+        // Disconnect as soon as the queue is full
+        DISCONNECT
+    }
+
+    enum Result { QUEUED, DROPPED, OVERFLOW }
+
+    // Across all clients, including ones that have since left
+    private static final LongAdder droppedVoiceTotal = Metrics.counter("outbound_dropped_voice_total",
+            "Voice messages dropped for slow clients");
+    private static final LongAdder droppedDrawTotal = Metrics.counter("outbound_dropped_draw_total",
+            "DRAW messages dropped for slow clients, who are resynced later");
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final long maxBehindNanos;
+    private final ArrayDeque<Frame> messages = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private long behindSince;
+    // When the smoothed round trip last went over maxBehindNanos, 0 while it is under
+    private long laggingSince;
+    // Set while the client's round trip is too long for queued voice to arrive in time to play
+    private volatile boolean shedVoice;
+    // For stats; -1 until measured
+    private volatile long roundTrip = -1;
+    private boolean resyncNeeded;
+    private boolean closed;
+    private int peakDepth;
+    private long droppedVoice;
+    private long droppedDraw;
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy, long maxBehindMillis) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.maxBehindNanos = TimeUnit.MILLISECONDS.toNanos(maxBehindMillis);
+    }
+
+    Result offer(Frame message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return Result.DROPPED;
+            }
+            if (shedVoice && message.kind == Frame.Kind.VOICE) {
+                droppedVoice++;
+                droppedVoiceTotal.increment();
+                return Result.DROPPED;
+            }
+            // Messages have taken longer than the deadline to reach the client for longer than the deadline,
+            // so it is behind even if the queue is not full; one slow catch-up alone does not count
+            if (laggingSince != 0 && System.nanoTime() - laggingSince > maxBehindNanos) {
+                return Result.OVERFLOW;
+            }
+            if (messages.size() < capacity) {
+                enqueue(message);
+                return Result.QUEUED;
+            }
+
+            long now = System.nanoTime();
+            if (behindSince == 0) {
+                behindSince = now;
+            }
+            if (policy == SlowConsumerPolicy.DISCONNECT || now - behindSince > maxBehindNanos) {
+                return Result.OVERFLOW;
+            }
+
+            if (message.kind == Frame.Kind.VOICE) {
+                droppedVoice++;
+                droppedVoiceTotal.increment();
+                return Result.DROPPED;
+            }
+            if (message.kind == Frame.Kind.DRAW) {
+                droppedDraw++;
+                droppedDrawTotal.increment();
+                resyncNeeded = true;
+                return Result.DROPPED;
+            }
+            // Make room for control traffic by evicting the oldest droppable line
+            if (evictOldest(Frame.Kind.VOICE) || evictOldest(Frame.Kind.DRAW)) {
+                enqueue(message);
+                return Result.QUEUED;
+            }
+            return Result.OVERFLOW;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Large one-off payloads such as the join replay bypass the bound
+    void offerBulk(Frame message) {
+        lock.lock();
+        try {
+            if (!closed) {
+                enqueue(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until at least one message is queued; returns 0 once closed
+    int drainTo(List<Frame> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return drainLocked(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Non-blocking variant for the NIO loop
+    Frame poll() {
+        lock.lock();
+        try {
+            Frame message = messages.poll();
+            if (message != null) {
+                caughtUp();
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once if DRAW lines were dropped and the queue has fully drained since
+    boolean takeResync() {
+        lock.lock();
+        try {
+            if (resyncNeeded && messages.isEmpty() && !closed) {
+                resyncNeeded = false;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void shedVoice(boolean shed) {
+        shedVoice = shed;
+    }
+
+    // The client's smoothed round trip to PROBE, which waits in this queue like everything else
+    void roundTrip(long nanos) {
+        lock.lock();
+        try {
+            roundTrip = nanos;
+            if (maxBehindNanos == 0 || nanos <= maxBehindNanos) {
+                laggingSince = 0;
+            } else if (laggingSince == 0) {
+                laggingSince = System.nanoTime();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            long rtt = roundTrip;
+            return "depth=" + messages.size() + "/" + capacity + " peak=" + peakDepth
+                    + " droppedVoice=" + droppedVoice + " droppedDraw=" + droppedDraw
+                    + (rtt < 0 ? "" : String.format(" rtt=%.1fms", rtt / 1e6));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Frame message) {
+        messages.add(message);
+        peakDepth = Math.max(peakDepth, messages.size());
+        notEmpty.signal();
+    }
+
+    private int drainLocked(List<Frame> batch, int max) {
+        int count = 0;
+        Frame message;
+        while (count < max && (message = messages.poll()) != null) {
+            batch.add(message);
+            count++;
+        }
+        if (count > 0) {
+            caughtUp();
+        }
+        return count;
+    }
+
+    // The client counts as caught up again once it is back under half the bound
+    private void caughtUp() {
+        if (messages.size() < capacity / 2) {
+            behindSince = 0;
+        }
+    }
+
+    private boolean evictOldest(Frame.Kind kind) {
+        Iterator<Frame> it = messages.iterator();
+        while (it.hasNext()) {
+            if (it.next().kind == kind) {
+                it.remove();
+                if (kind == Frame.Kind.VOICE) {
+                    droppedVoice++;
+                    droppedVoiceTotal.increment();
+                } else {
+                    droppedDraw++;
+                    droppedDrawTotal.increment();
+                    resyncNeeded = true;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,208 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by Server and ChatClient.
+ *
+ * Version 1 is the original newline-terminated text protocol. A client that
+ * supports version 2 sends {@link #OFFER}; a server that supports it answers
+ * with the same line and switches its output to binary frames right after
+ * it. The client then sends {@link #READY} as its last text line and switches
+ * too. Old servers ignore the offer and old clients never send it, so both
+ * keep talking text.
+ *
+ * A version 2 frame is {@code [varint length][opcode][payload]}, where the
+ * length covers the opcode and payload. DRAW/ERASE payloads are polylines:
+ * {@code [varint points][zigzag x0][zigzag y0]} followed by zigzag varint
+ * deltas to the previous point, so a typical segment fits in a few bytes.
+ */
+final class Protocol {
+    static final String OFFER = "PROTO 2";
+    static final String READY = "PROTO_READY";
+
+    static final byte OP_TEXT = 1;
+    static final byte OP_DRAW = 2;
+    static final byte OP_ERASE = 3;
+    // Canvas checkpoint: PNG image bytes
+    static final byte OP_SNAPSHOT = 4;
+    // Call audio over TCP: [int sequence][encoded audio], routed to the sender's call peer
+    static final byte OP_VOICE = 5;
+    // [long nanos]: when the next DRAW/ERASE was drawn, on the server's clock; only sent after STAMP_DRAWS
+    static final byte OP_STAMP = 6;
+    static final int STAMP_FRAME_LENGTH = 1 + 1 + 8;
+
+    static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    static final int MAX_POLYLINE_POINTS = 4096;
+
+    // Voice datagrams: [type][long token] to the relay, then [int sequence][audio] for VOICE_PACKET.
+    // The relay echoes VOICE_REGISTER back and sends [VOICE_PACKET][int sequence][audio] to the peer.
+    static final byte VOICE_REGISTER = 1;
+    static final byte VOICE_PACKET = 2;
+    static final int MAX_VOICE_PAYLOAD = 1400;
+    static final int MAX_VOICE_DATAGRAM = 1 + 8 + 4 + MAX_VOICE_PAYLOAD;
+
+    // Voice codec negotiation appended to the name: "CALL_REQUEST bob;codecs=ADPCM,PCM", "CALL_ACCEPT alice;codec=ADPCM"
+    static final String CODECS_OFFER = ";codecs=";
+    static final String CODEC_CHOSEN = ";codec=";
+
+    private Protocol() {}
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Returns the offset just past the written varint
+    static int writeVarint(byte[] dst, int off, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[off++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[off++] = (byte) value;
+        return off;
+    }
+
+    // Upper bound for a whole polyline frame, length prefix included
+    static int maxPolylineFrameLength(int pointCount) {
+        return 5 + 1 + 5 + pointCount * 10;
+    }
+
+    // Writes a complete DRAW/ERASE frame into dst and returns its length
+    static int encodePolyline(boolean erase, int[] xy, int pointCount, byte[] dst, int off) {
+        int payloadLength = 1 + varintSize(pointCount);
+        int prevX = 0, prevY = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int x = xy[2 * i], y = xy[2 * i + 1];
+            payloadLength += varintSize(zigzag(x - prevX)) + varintSize(zigzag(y - prevY));
+            prevX = x;
+            prevY = y;
+        }
+
+        int pos = writeVarint(dst, off, payloadLength);
+        dst[pos++] = erase ? OP_ERASE : OP_DRAW;
+        pos = writeVarint(dst, pos, pointCount);
+        prevX = 0;
+        prevY = 0;
+        for (int i = 0; i < pointCount; i++) {
+            int x = xy[2 * i], y = xy[2 * i + 1];
+            pos = writeVarint(dst, pos, zigzag(x - prevX));
+            pos = writeVarint(dst, pos, zigzag(y - prevY));
+            prevX = x;
+            prevY = y;
+        }
+        return pos - off;
+    }
+
+    // Upper bound for a whole OP_VOICE frame, length prefix included
+    static final int MAX_VOICE_FRAME_LENGTH = 5 + 1 + 4 + MAX_VOICE_PAYLOAD;
+
+    // Writes a complete OP_VOICE frame into dst and returns its length; audio beyond MAX_VOICE_PAYLOAD is cut off
+    static int encodeVoice(int sequence, byte[] audio, int length, byte[] dst) {
+        length = Math.min(length, MAX_VOICE_PAYLOAD);
+        int pos = writeVarint(dst, 0, 1 + 4 + length);
+        dst[pos++] = OP_VOICE;
+        dst[pos++] = (byte) (sequence >> 24);
+        dst[pos++] = (byte) (sequence >> 16);
+        dst[pos++] = (byte) (sequence >> 8);
+        dst[pos++] = (byte) sequence;
+        System.arraycopy(audio, 0, dst, pos, length);
+        return pos + length;
+    }
+
+    // Sequence number at the start of an OP_VOICE payload
+    static int voiceSequence(byte[] src, int off) {
+        return (src[off] << 24) | (src[off + 1] & 0xFF) << 16 | (src[off + 2] & 0xFF) << 8 | (src[off + 3] & 0xFF);
+    }
+
+    // Writes a complete OP_STAMP frame at dst[0]; it is always STAMP_FRAME_LENGTH bytes
+    static void encodeStamp(long nanos, byte[] dst) {
+        dst[0] = 1 + 8;
+        dst[1] = OP_STAMP;
+        for (int i = 0; i < 8; i++) {
+            dst[2 + i] = (byte) (nanos >>> (56 - 8 * i));
+        }
+    }
+
+    static long readLong(byte[] src, int off) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (src[off + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static byte[] encodeText(String text) {
+        return encodeBlob(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] encodeBlob(byte opcode, byte[] payload) {
+        int length = 1 + payload.length;
+        byte[] frame = new byte[varintSize(length) + length];
+        int pos = writeVarint(frame, 0, length);
+        frame[pos++] = opcode;
+        System.arraycopy(payload, 0, frame, pos, payload.length);
+        return frame;
+    }
+
+    // Point count of a DRAW/ERASE payload, or -1 if it is malformed or too long
+    static int polylinePointCount(byte[] src, int off, int len) {
+        int count = 0;
+        int shift = 0;
+        for (int pos = off; pos < off + len && shift < 32; pos++, shift += 7) {
+            count |= (src[pos] & 0x7F) << shift;
+            if ((src[pos] & 0x80) == 0) {
+                return count >= 2 && count <= MAX_POLYLINE_POINTS ? count : -1;
+            }
+        }
+        return -1;
+    }
+
+    // Decodes a DRAW/ERASE payload into xy (x0, y0, x1, y1, ...); returns the point count or -1
+    static int decodePolyline(byte[] src, int off, int len, int[] xy) {
+        int end = off + len;
+        int pos = off;
+        int pointCount = 0;
+        int value = 0;
+        int shift = 0;
+        int decoded = -1;
+        while (pos < end) {
+            byte b = src[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+            if ((b & 0x80) != 0) {
+                if (shift >= 35) {
+                    return -1;
+                }
+                continue;
+            }
+            if (decoded < 0) {
+                pointCount = value;
+                if (pointCount < 2 || pointCount > MAX_POLYLINE_POINTS || pointCount * 2 > xy.length) {
+                    return -1;
+                }
+            } else {
+                // Even slots are x, odd slots are y; each is a delta to the previous point
+                int prev = decoded >= 2 ? xy[decoded - 2] : 0;
+                xy[decoded] = prev + unzigzag(value);
+            }
+            decoded++;
+            value = 0;
+            shift = 0;
+            if (decoded == pointCount * 2) {
+                return pos == end ? pointCount : -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One game session: its own members, canvas checkpoint (with its own folder
+ * thread) and chat. Drawing in a room only takes that room's lock and only
+ * queues frames for that room's members, so busy rooms do not slow each
+ * other down.
+ */
+class Room {
+    private static final Metrics.Histogram lockWait = Metrics.histogram("room_lock_wait_seconds",
+            "Time a DRAW, CLEAR or UNDO waited for its room's lock");
+    private static final Metrics.Histogram broadcastTime = Metrics.histogram("broadcast_seconds",
+            "Time to queue one message for every member of a room");
+
+    final String name;
+    final CanvasCheckpoint canvas;
+    private final Set<Server.ClientHandler> members = ConcurrentHashMap.newKeySet();
+    // Orders drawing operations with joins and leaves, so a client that left gets nothing drawn after it
+    private final ReentrantLock lock = new ReentrantLock();
+
+    Room(String name, CanvasCheckpoint canvas) {
+        this.name = name;
+        this.canvas = canvas;
+    }
+
+    /**
+     * Adds client and queues its catch-up frame (prefix, snapshot, tail)
+     * in the same step, so operations drawn afterwards are broadcast behind
+     * it. Returns the catch-up, or null if there was nothing to send.
+     */
+    Frame join(Server.ClientHandler client, Frame prefix) {
+        lock.lock();
+        try {
+            return canvas.join(prefix, catchUp -> {
+                members.add(client);
+                queue(client, catchUp);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues the board again after DRAW frames were dropped for client; nothing if it has since left
+    void resync(Server.ClientHandler client, Frame prefix) {
+        lock.lock();
+        try {
+            if (members.contains(client)) {
+                canvas.join(prefix, catchUp -> queue(client, catchUp));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void queue(Server.ClientHandler client, Frame catchUp) {
+        if (catchUp != null) {
+            client.outbound.offerBulk(catchUp);
+            client.wakeWriter();
+        }
+    }
+
+    void leave(Server.ClientHandler client) {
+        lock.lock();
+        try {
+            members.remove(client);
+            canvas.forget(client);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a DRAW or CLEAR and queues it for everyone else in the room;
+     * sends never block. A local operation is also handed to federation,
+     * null for one that came from another node, while the lock still orders
+     * it, so the other nodes apply this room's operations in the same order.
+     */
+    void draw(Frame frame, Server.ClientHandler from, boolean clear, Federation federation) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            lockWait.recordSince(start);
+            if (clear) {
+                canvas.clear();
+            } else {
+                canvas.append(frame, from);
+            }
+            broadcast(frame, from);
+            if (federation != null) {
+                federation.forward(name, frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes back client's newest stroke and queues the repaint for every
+     * member, the client included. Other nodes get only the REPAINT line
+     * and take the same stroke out of their own index. Returns the repaint,
+     * or null if the client has nothing left to undo here.
+     */
+    Frame undo(Server.ClientHandler client, Federation federation) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            lockWait.recordSince(start);
+            Frame repaint = canvas.undo(client);
+            if (repaint != null) {
+                broadcast(repaint, null);
+                if (federation != null) {
+                    federation.forward(name, repaint.parts()[0]);
+                }
+            }
+            return repaint;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // An undo made on another node, named by the first line of its repaint
+    void remoteUndo(String repaint) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            lockWait.recordSince(start);
+            Frame local = canvas.undo(repaint);
+            if (local != null) {
+                broadcast(local, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The frame is encoded once and the same bytes are queued for every member
+    void broadcast(Frame message, Server.ClientHandler exclude) {
+        long start = System.nanoTime();
+        for (Server.ClientHandler member : members) {
+            if (exclude == null || member != exclude) {
+                member.send(message);
+            }
+        }
+        broadcastTime.recordSince(start);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    Iterable<Server.ClientHandler> members() {
+        return members;
+    }
+
+    // Stops the checkpoint folder once the room is gone
+    void close() {
+        canvas.close();
+    }
+}
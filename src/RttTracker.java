@@ -0,0 +1,151 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Round trip and clock offset to one peer, from timestamped probes in the
+ * style of NTP: a probe leaves at t0 on our clock, the peer receives it at
+ * t1 and answers at t2 on its clock, and the answer arrives at t3. Then
+ *
+ *   rtt    = (t3 - t0) - (t2 - t1)
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2     (peer clock minus ours)
+ *
+ * All four are System.nanoTime() readings, so the offset relates the two
+ * processes' monotonic clocks rather than wall time. Queueing on one leg
+ * skews a sample's offset by half the extra delay, so, like NTP's clock
+ * filter, the offset comes from the fastest of the last few probes. Every
+ * answer carries its own t0, so overlapping probes never mix up timings.
+ */
+final class RttTracker {
+    private static final int FILTER_SAMPLES = 8;
+
+    private final Window recent;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long[] filterRtt = new long[FILTER_SAMPLES];
+    private final long[] filterOffset = new long[FILTER_SAMPLES];
+    private int samples;
+    private long offset;
+    // Guarded by lock; volatile so the hot paths can read it without locking
+    private volatile long smoothed = -1;
+
+    RttTracker(int window) {
+        recent = new Window(window);
+    }
+
+    // Returns the sample's round trip
+    long sample(long t0, long t1, long t2, long t3) {
+        long rtt = Math.max(0, (t3 - t0) - (t2 - t1));
+        long sampleOffset = ((t1 - t0) + (t2 - t3)) / 2;
+        lock.lock();
+        try {
+            int slot = samples++ % FILTER_SAMPLES;
+            filterRtt[slot] = rtt;
+            filterOffset[slot] = sampleOffset;
+            int best = 0;
+            for (int i = 1; i < Math.min(samples, FILTER_SAMPLES); i++) {
+                if (filterRtt[i] < filterRtt[best]) {
+                    best = i;
+                }
+            }
+            offset = filterOffset[best];
+            smooth(rtt);
+        } finally {
+            lock.unlock();
+        }
+        recent.record(rtt);
+        return rtt;
+    }
+
+    // A round trip timed entirely on our own clock, such as a probe the peer echoes back unchanged
+    void sample(long rtt) {
+        lock.lock();
+        try {
+            smooth(Math.max(0, rtt));
+        } finally {
+            lock.unlock();
+        }
+        recent.record(Math.max(0, rtt));
+    }
+
+    // Smoothed round trip as TCP keeps it (RFC 6298, gain 1/8), or -1 before the first sample
+    long smoothed() {
+        return smoothed;
+    }
+
+    // Peer clock minus ours; add it to one of our readings to get the peer's
+    long offset() {
+        lock.lock();
+        try {
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // False until a four-timestamp probe has been answered
+    boolean hasOffset() {
+        lock.lock();
+        try {
+            return samples > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Window recent() {
+        return recent;
+    }
+
+    private void smooth(long rtt) {
+        long current = smoothed;
+        smoothed = current < 0 ? rtt : current + (rtt - current) / 8;
+    }
+
+    /**
+     * The last few samples, for percentiles over a rolling window; a
+     * Metrics.Histogram covers everything since startup instead.
+     */
+    static final class Window {
+        private final long[] samples;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long recorded;
+
+        Window(int size) {
+            samples = new long[size];
+        }
+
+        void record(long nanos) {
+            lock.lock();
+            try {
+                samples[(int) (recorded++ % samples.length)] = nanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Sorts a copy, which is cheap at the few hundred samples kept; -1 while empty
+        long quantile(double q) {
+            long[] sorted;
+            lock.lock();
+            try {
+                sorted = Arrays.copyOf(samples, (int) Math.min(recorded, samples.length));
+            } finally {
+                lock.unlock();
+            }
+            if (sorted.length == 0) {
+                return -1;
+            }
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(q * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+        }
+
+        long count() {
+            lock.lock();
+            try {
+                return recorded;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,177 +1,1025 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
 
 public class Server {
-    private static Set<ClientHandler> clients = Collections.synchronizedSet(new HashSet<>());
-    private static List<String> drawHistory = Collections.synchronizedList(new ArrayList<>());
+    // Every connected client, for presence; drawing and chat go through the client's room
+    // Concurrent set instead of a synchronized one so virtual threads never pin their carrier
+    private static Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // Rooms by name; the lobby always exists and is the only one persisted by --journal
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // Serializes creating, joining and removing rooms so no one joins a room as it is closed.
+    // Always taken before a room's lock, never while holding one.
+    private static final ReentrantLock roomsLock = new ReentrantLock();
+    static final String LOBBY = "lobby";
+    private static Room lobby;
+    private static int boardWidth;
+    private static int boardHeight;
+    private static int checkpointEvery;
+    private static int maxRooms = 64;
+    // Routing index for calls and voice; each name maps to at most one live client
+    private static final ConcurrentHashMap<String, ClientHandler> clientsByName = new ConcurrentHashMap<>();
+    // Orders presence changes so every client sees the versions in sequence
+    private static final ReentrantLock presenceLock = new ReentrantLock();
+    private static long presenceVersion;
+    // Pairs and unpairs call peers, so two accepts cannot both claim the same client
+    private static final ReentrantLock callsLock = new ReentrantLock();
+    private static VoiceRelay voiceRelay;
+    private static VoiceMixer voiceMixer;
+    // Links to the other nodes of a multi-process session; null when running alone
+    private static Federation federation;
+    private static final Frame CLEAR_FRAME = Frame.of("CLEAR");
+
+    private static final Metrics.Histogram drawDelivery = Metrics.histogram("draw_delivery_seconds",
+            "Time from a DRAW being received to it being written to a recipient's socket");
+    private static final Metrics.Histogram joinReplay = Metrics.histogram("join_replay_seconds",
+            "Time to build the catch-up (checkpoint plus tail) for a client entering a room");
+    private static final LongAdder slowConsumerDisconnects = Metrics.counter("slow_consumer_disconnects_total",
+            "Clients disconnected because their outbound queue overflowed");
+
+    // Per-client outbound queue settings
+    private static int queueCapacity = 1024;
+    private static OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DROP;
+    private static long slowConsumerTimeoutMs = 5000;
+    // Voice queued for a client whose smoothed round trip is longer than this is dropped; 0 never drops
+    private static long maxVoiceRttNanos;
 
     public static void main(String[] args) throws Exception {
-        System.out.println("Pictionary Server started on port 1234...");
-        ServerSocket serverSocket = new ServerSocket(1234);
+        int port = Integer.parseInt(option(args, "port", "1234"));
+        String mode = option(args, "mode", "blocking");
+        queueCapacity = Integer.parseInt(option(args, "outbound-queue", "1024"));
+        slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(option(args, "slow-consumer", "drop").toUpperCase());
+        slowConsumerTimeoutMs = Long.parseLong(option(args, "slow-consumer-timeout-ms", "5000"));
+        maxVoiceRttNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option(args, "max-voice-rtt-ms", "400")));
+        String[] board = option(args, "board", "2000x1200").split("x");
+        boardWidth = Integer.parseInt(board[0]);
+        boardHeight = Integer.parseInt(board[1]);
+        checkpointEvery = Integer.parseInt(option(args, "checkpoint-every", "512"));
+        maxRooms = Integer.parseInt(option(args, "max-rooms", String.valueOf(maxRooms)));
+        lobby = new Room(LOBBY, new CanvasCheckpoint(boardWidth, boardHeight, checkpointEvery));
+        rooms.put(LOBBY, lobby);
+        String journalDir = option(args, "journal", null);
+        if (journalDir != null) {
+            startJournal(Paths.get(journalDir));
+        }
+        int voicePort = Integer.parseInt(option(args, "voice-port", String.valueOf(port)));
+        if (voicePort > 0) {
+            voiceRelay = new VoiceRelay(voicePort);
+            Thread relay = new Thread(voiceRelay, "voice-relay");
+            relay.setDaemon(true);
+            relay.start();
+            System.out.println("Voice relay listening on UDP port " + voiceRelay.port());
+        }
+        voiceMixer = new VoiceMixer(voiceRelay);
+        Thread mixer = new Thread(voiceMixer, "voice-mixer");
+        mixer.setDaemon(true);
+        mixer.start();
+        int peerPort = Integer.parseInt(option(args, "peer-port", "0"));
+        String peers = option(args, "peers", "");
+        if (peerPort > 0 || !peers.isEmpty()) {
+            startFederation(option(args, "node-id", "node-" + port), peerPort, peers);
+        }
+        registerMetrics(Integer.parseInt(option(args, "metrics-port", "0")));
+        int probeInterval = Integer.parseInt(option(args, "probe-interval-ms", "2000"));
+        if (probeInterval > 0) {
+            startProbes(probeInterval);
+        }
+        int statsInterval = Integer.parseInt(option(args, "stats-interval", "0"));
+        if (statsInterval > 0) {
+            startQueueStats(statsInterval);
+        }
+
+        if (mode.equals("nio")) {
+            int ioThreads = Integer.parseInt(option(args, "io-threads",
+                    String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+            System.out.println("Pictionary Server started on port " + port + " (nio, " + ioThreads + " I/O threads)...");
+            new NioServer(port, ioThreads).run();
+            return;
+        }
+
+        boolean virtual = mode.equals("virtual");
+        ThreadFactory threads = (virtual ? Thread.ofVirtual().name("client-", 0) : Thread.ofPlatform().name("client-", 0)).factory();
+        if (virtual) {
+            long thresholdMs = Long.parseLong(option(args, "pinning-threshold-ms", "1"));
+            startPinningMonitor(Duration.ofMillis(thresholdMs));
+        }
+
+        System.out.println("Pictionary Server started on port " + port + (virtual ? " (virtual threads)..." : "..."));
+        ServerSocket serverSocket = new ServerSocket(port);
 
         while (true) {
             Socket socket = serverSocket.accept();
             System.out.println("New client connected: " + socket.getInetAddress());
-            new ClientHandler(socket).start();
+            threads.newThread(new SocketClientHandler(socket, threads)).start();
         }
     }
 
-    private static class ClientHandler extends Thread {
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String clientName;
+    // Replays the on-disk journal into the lobby canvas, then persists every new lobby operation
+    private static void startJournal(Path dir) throws IOException {
+        CanvasCheckpoint canvas = lobby.canvas;
+        DrawJournal journal = new DrawJournal(dir);
+        long started = System.nanoTime();
+        long replayed = journal.recover(canvas);
+        System.out.println("Recovered canvas from " + dir + ": " + replayed + " operations replayed in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        canvas.attach(journal);
+        journal.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "draw-journal-shutdown"));
+    }
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+    // Listens for other nodes on peerPort and keeps a link to each "host:port" in peers
+    private static void startFederation(String nodeId, int peerPort, String peers) throws IOException {
+        federation = new Federation(nodeId, presenceLock, clientsByName.keySet());
+        if (peerPort > 0) {
+            federation.listen(peerPort);
         }
+        for (String peer : peers.split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon > 0) {
+                federation.dial(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+            }
+        }
+        System.out.println("Federation node " + nodeId + (peerPort > 0 ? " listening for peers on port " + peerPort : "")
+                + (peers.isEmpty() ? "" : ", linking to " + peers));
+    }
 
-        public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Send existing canvas history to the new client
-                synchronized (drawHistory) {
-                    for (String line : drawHistory) {
-                        out.println(line);
+    // Gauges read at scrape time, JMX, and the HTTP endpoint if a port is given
+    private static void registerMetrics(int port) throws IOException {
+        Metrics.gauge("clients_connected", "Connected clients", clients::size);
+        Metrics.gauge("rooms_open", "Open rooms, including the lobby", rooms::size);
+        Metrics.gauge("canvas_tail_operations", "Operations held in room canvases and not yet folded into a checkpoint", () -> {
+            long operations = 0;
+            for (Room room : rooms.values()) {
+                operations += room.canvas.tailSize();
+            }
+            return operations;
+        });
+        Metrics.gauge("stroke_index_points", "Points of the strokes still on the room boards, as held for undo", () -> {
+            long points = 0;
+            for (Room room : rooms.values()) {
+                points += room.canvas.strokePoints();
+            }
+            return points;
+        });
+        Metrics.gaugeFamily("outbound_queue_depth", "Messages waiting in a client's outbound queue", "client", out -> {
+            for (ClientHandler client : clients) {
+                String name = client.getClientName();
+                out.accept(name == null ? "unnamed" : name, (long) client.outbound.size());
+            }
+        });
+        Metrics.gaugeFamily("client_rtt_microseconds", "Smoothed round trip of PROBE to PROBE_ACK, including the outbound queue",
+                "client", out -> {
+                    for (ClientHandler client : clients) {
+                        long rtt = client.rtt.smoothed();
+                        String name = client.getClientName();
+                        if (rtt >= 0) {
+                            out.accept(name == null ? "unnamed" : name, TimeUnit.NANOSECONDS.toMicros(rtt));
+                        }
                     }
+                });
+        Metrics.registerJmx("server");
+        if (port > 0) {
+            Metrics.startHttp(port);
+        }
+    }
+
+    // Periodically logs every client's outbound queue depth and drop counts
+    private static void startQueueStats(int intervalSeconds) {
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "queue-stats");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleAtFixedRate(() -> {
+            for (ClientHandler client : clients) {
+                System.out.println("Queue " + client.getClientName() + ": " + client.outbound.stats());
+            }
+            System.out.println("Rooms: " + roomList());
+            if (federation != null) {
+                System.out.println("Federation: " + federation.stats());
+            }
+            System.out.println("Voice mixer: " + voiceMixer.stats());
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Times every protocol 2 client: "PROBE t0" goes through the outbound
+     * queue like any other message and the client echoes "PROBE_ACK t0", so
+     * the round trip includes the queue and is timed on our clock alone.
+     * Older clients ignore the probe.
+     */
+    private static void startProbes(int intervalMillis) {
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rtt-probes");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleAtFixedRate(() -> {
+            for (ClientHandler client : clients) {
+                if (client.protocol2) {
+                    client.send("PROBE " + System.nanoTime());
                 }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
 
-                synchronized (clients) {
-                    clients.add(this);
+    // Logs every jdk.VirtualThreadPinned event so we can confirm the hot path never pins a carrier
+    private static void startPinningMonitor(Duration threshold) {
+        AtomicLong pinnedCount = new AtomicLong();
+        RecordingStream recording = new RecordingStream();
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+        recording.onEvent("jdk.VirtualThreadPinned", event -> {
+            long count = pinnedCount.incrementAndGet();
+            System.out.println("Carrier pinned for " + event.getDuration().toMillis() + " ms (#" + count + ") at " + pinnedFrame(event));
+        });
+        recording.startAsync();
+        System.out.println("Reporting carrier-thread pinning longer than " + threshold.toMillis() + " ms");
+    }
+
+    private static String pinnedFrame(RecordedEvent event) {
+        if (event.getStackTrace() == null) {
+            return "unknown";
+        }
+        // Skip JDK frames to point at our own code
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+            }
+        }
+        return event.getStackTrace().getFrames().isEmpty() ? "unknown" : event.getStackTrace().getFrames().get(0).toString();
+    }
+
+    /**
+     * Moves client from its current room (if any) into the named one,
+     * creating it if needed, and queues the new room's catch-up after
+     * prefix. False if the room does not exist and --max-rooms are
+     * already open; the client then stays where it was. Empty rooms other
+     * than the lobby are closed.
+     */
+    static boolean moveToRoom(ClientHandler client, Room from, String name, Frame prefix) {
+        roomsLock.lock();
+        try {
+            Room to = rooms.get(name);
+            if (to == null) {
+                if (rooms.size() >= maxRooms) {
+                    return false;
                 }
+                to = new Room(name, new CanvasCheckpoint(boardWidth, boardHeight, checkpointEvery));
+                rooms.put(name, to);
+            }
+            if (from != null) {
+                leaveRoom(client, from);
+            }
+            client.room = to;
+            long start = System.nanoTime();
+            to.join(client, prefix);
+            joinReplay.recordSince(start);
+            return true;
+        } finally {
+            roomsLock.unlock();
+        }
+    }
 
-                String msg;
-                while ((msg = in.readLine()) != null) {
-                    if (msg.equals("PING")) {
-                        out.println("PONG");
-                        continue;
-                    }
+    static void leaveRoom(ClientHandler client, Room room) {
+        roomsLock.lock();
+        try {
+            room.leave(client);
+            if (room != lobby && room.isEmpty() && rooms.remove(room.name, room)) {
+                room.close();
+            }
+        } finally {
+            roomsLock.unlock();
+        }
+    }
 
-                    if (msg.startsWith("DRAW ") || msg.equals("CLEAR")) {
-                        synchronized (drawHistory) {
-                            if (msg.equals("CLEAR")) {
-                                drawHistory.clear();
-                            } else {
-                                drawHistory.add(msg);
-                            }
-                        }
-                        broadcast(msg, this);
-                    } else if (msg.startsWith("CHAT ")) {
-                        // Chat message - broadcast to everyone including sender
-                        broadcast(msg, null);
-                        System.out.println("Chat: " + msg);
-                    } else if (msg.startsWith("NAME ")) {
-                        clientName = msg.substring(5);
-                        System.out.println("Client named: " + clientName);
-                        // Send initial user list to this client
-                        sendUserList(this);
-                        // Broadcast updated user list to all clients
-                        broadcastUserList();
-                    } else if (msg.equals("GET_USERS")) {
-                        sendUserList(this);
-                    } else if (msg.startsWith("CALL_REQUEST ")) {
-                        // Forward call request to target user
-                        String targetUser = msg.substring(13);
-                        forwardToUser(targetUser, "CALL_REQUEST " + clientName);
-                    } else if (msg.startsWith("CALL_ACCEPT ")) {
-                        // Forward call acceptance to caller
-                        String callerUser = msg.substring(12);
-                        forwardToUser(callerUser, "CALL_ACCEPT " + clientName);
-                    } else if (msg.startsWith("CALL_REJECT ")) {
-                        // Forward call rejection to caller
-                        String callerUser = msg.substring(12);
-                        forwardToUser(callerUser, "CALL_REJECT " + clientName);
-                    } else if (msg.startsWith("CALL_END ")) {
-                        // Forward call end to other user
-                        String otherUser = msg.substring(9);
-                        forwardToUser(otherUser, "CALL_END " + clientName);
-                    } else if (msg.startsWith("VOICE_DATA ")) {
-                        // Forward voice data to target user
-                        String[] parts = msg.substring(11).split(" ", 2);
-                        if (parts.length == 2) {
-                            String targetUser = parts[0];
-                            String voiceData = parts[1];
-                            forwardToUser(targetUser, "VOICE_DATA " + clientName + " " + voiceData);
-                        }
-                    }
+    // "name:members,..." for ROOMS and the stats log
+    static String roomList() {
+        StringBuilder list = new StringBuilder();
+        for (Room room : rooms.values()) {
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(room.name).append(':').append(room.size());
+        }
+        return list.toString();
+    }
+
+    // A DRAW from another node, or a CLEAR if draw is null; rooms not open here ignore it
+    static void remoteDraw(String roomName, Frame draw) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            room.draw(draw == null ? CLEAR_FRAME : draw, null, draw == null, null);
+        }
+    }
+
+    // An UNDO from another node, named by its REPAINT line
+    static void remoteUndo(String roomName, String repaint) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            room.remoteUndo(repaint);
+        }
+    }
+
+    static void remoteChat(String roomName, String message) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            room.broadcast(Frame.of(message), null);
+        }
+    }
+
+    // A user appeared on or left another node
+    static void remotePresence(String left, String joined) {
+        presenceLock.lock();
+        try {
+            ClientHandler.publishPresence(left, joined);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    /**
+     * A message another node routed to one of our users. Calls across nodes
+     * are paired by name, so their audio is routed as VOICE_DATA.
+     */
+    static void deliver(String user, String message) {
+        ClientHandler client = clientsByName.get(user);
+        if (client == null) {
+            return;
+        }
+        if (message.startsWith("CALL_REQUEST ")) {
+            client.incomingCalls.add(message.substring(13));
+        } else if (message.startsWith("CALL_ACCEPT ")) {
+            String callee = message.substring(12);
+            if (!client.pairRemote(callee, client.outgoingCalls.remove(callee))) {
+                // Nobody here asked for this call, or our user is busy; the other end unpairs
+                federation.route(callee, "CALL_END " + user);
+                return;
+            }
+        } else if (message.startsWith("CALL_REJECT ")) {
+            client.outgoingCalls.remove(message.substring(12));
+        } else if (message.startsWith("CALL_END ")) {
+            client.callEnded(message.substring(9));
+        }
+        client.send(message);
+    }
+
+    // Everyone on this node and, when federated, on the others
+    private static String userNames() {
+        if (federation == null) {
+            return String.join(",", clientsByName.keySet());
+        }
+        Set<String> names = new LinkedHashSet<>(clientsByName.keySet());
+        names.addAll(federation.userNames());
+        return String.join(",", names);
+    }
+
+    // Reads "--name=value" style startup options
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Protocol logic shared by every server mode. Subclasses only decide how
+     * lines are read from the connection and how the outbound queue is drained.
+     */
+    abstract static class ClientHandler {
+        private volatile String clientName;
+        // Set once the client has sent its last text line; read by the transport
+        volatile boolean binaryInput;
+        // Only touched by the writer, which switches right after the protocol answer
+        private boolean binaryOutput;
+        // Only touched by the reading thread
+        private boolean joined;
+        // Protocol 2 clients get versioned USER_JOIN/USER_LEAVE deltas and a UDP voice token
+        private volatile boolean protocol2;
+        // Voice relay state: our token, the UDP address it was last seen from, and the other end of our call
+        private volatile long voiceToken;
+        volatile SocketAddress voiceAddress;
+        volatile ClientHandler callPeer;
+        // Name of the other end of a call with a user on another node
+        volatile String remoteCallPeer;
+        // Callers waiting for this client's answer, and users on other nodes it is calling; pairing needs one
+        private final Set<String> incomingCalls = ConcurrentHashMap.newKeySet();
+        private final Set<String> outgoingCalls = ConcurrentHashMap.newKeySet();
+        // Set while the client is in a group voice channel
+        volatile VoiceMixer.Member voiceMember;
+        // Set under roomsLock on the reading thread; the writer reads it to resync
+        volatile Room room;
+        // Round trip measured by PROBE; estimates when this client's strokes were drawn, decides voice
+        // shedding, and disconnects a client that stays over --slow-consumer-timeout-ms
+        final RttTracker rtt = new RttTracker(64);
+        // Set once the client asks for an OP_STAMP ahead of every live DRAW frame
+        volatile boolean stampDraws;
+        final OutboundQueue outbound = new OutboundQueue(queueCapacity, slowConsumerPolicy, slowConsumerTimeoutMs);
+
+        // Tells the writer that the outbound queue has new messages
+        abstract void wakeWriter();
+
+        // Closes the connection; the read side then runs onDisconnect(). Never leaves the room
+        // itself, since send() calls it from broadcasts that hold the room's lock.
+        abstract void close();
+
+        String getClientName() {
+            return clientName;
+        }
+
+        // Called by the writer for every frame it hands to the socket
+        static void recordSent(Frame frame, int bytes) {
+            Metrics.sent(frame.op, bytes);
+            if (frame.kind == Frame.Kind.DRAW) {
+                drawDelivery.recordSince(frame.createdNanos);
+            }
+        }
+
+        // Encoding for the next frame this client's writer puts on the wire
+        boolean encodingFor(Frame frame) {
+            boolean binary = binaryOutput;
+            if (frame.switchesToBinary()) {
+                binaryOutput = true;
+            }
+            return binary;
+        }
+
+        final void send(String message) {
+            send(Frame.of(message));
+        }
+
+        // Never blocks: the frame is queued, dropped or the client is evicted
+        final void send(Frame message) {
+            OutboundQueue.Result result = outbound.offer(message);
+            if (result == OutboundQueue.Result.QUEUED) {
+                wakeWriter();
+            } else if (result == OutboundQueue.Result.OVERFLOW) {
+                slowConsumerDisconnects.increment();
+                System.out.println("Disconnecting slow client " + clientName + ": " + outbound.stats());
+                close();
+            }
+        }
+
+        /**
+         * Puts the client in the lobby, which queues its canvas checkpoint and
+         * recent operations as one entry and starts broadcasts. Deferred until
+         * the client's first message so a client offering the binary protocol
+         * gets it in binary.
+         */
+        private void join() {
+            joined = true;
+            clients.add(this);
+            moveToRoom(this, null, LOBBY, null);
+            if (protocol2 && voiceRelay != null) {
+                try {
+                    voiceToken = voiceRelay.register(this);
+                    send("VOICE_UDP " + voiceRelay.port() + " " + voiceToken);
+                } catch (IOException e) {
+                    // No UDP for this client; voice stays on VOICE_DATA
+                }
+            }
+        }
+
+        // Called by the writer once it has caught up after DRAW lines were dropped
+        void resyncIfNeeded() {
+            if (!outbound.takeResync()) {
+                return;
+            }
+            room.resync(this, CLEAR_FRAME);
+        }
+
+        void onDisconnect() {
+            clients.remove(this);
+            Room current = room;
+            if (current != null) {
+                leaveRoom(this, current);
+            }
+            outbound.close();
+            if (voiceToken != 0) {
+                voiceRelay.unregister(voiceToken);
+            }
+            ClientHandler peer = callPeer;
+            String remotePeer = remoteCallPeer;
+            if (peer != null) {
+                endCall();
+                peer.send("CALL_END " + clientName);
+            } else if (remotePeer != null) {
+                endCall();
+                forwardToUser(remotePeer, "CALL_END " + clientName);
+            }
+            leaveVoiceChannel();
+            presenceLock.lock();
+            try {
+                String name = clientName;
+                if (name != null && clientsByName.remove(name, this)) {
+                    publishLocalPresence(name, null);
                 }
-            } catch (IOException e) {
-                System.out.println("Client disconnected: " + clientName);
             } finally {
+                presenceLock.unlock();
+            }
+        }
+
+        // wireLength is what the line took on the wire, its UTF-8 bytes plus terminator or frame header
+        void handleMessage(String msg, int wireLength) {
+            Metrics.received(Metrics.Op.of(msg), wireLength);
+            if (!joined) {
+                if (msg.equals(Protocol.OFFER)) {
+                    // Client speaks the binary protocol; our writer switches after this answer
+                    send(Frame.protocolAccept());
+                    protocol2 = true;
+                    join();
+                    return;
+                }
+                join();
+            }
+
+            if (msg.equals("PING")) {
+                send("PONG");
+                return;
+            }
+            if (msg.startsWith("PING ")) {
+                // "PING seq t0" is answered with "PONG seq t0 t1 t2": t1 when it arrived, t2 when it was answered
+                long arrived = System.nanoTime();
+                send("PONG " + msg.substring(5) + " " + arrived + " " + System.nanoTime());
+                return;
+            }
+            if (msg.startsWith("PROBE_ACK ")) {
                 try {
-                    socket.close();
-                } catch (IOException e) {}
-                synchronized (clients) {
-                    clients.remove(this);
+                    rtt.sample(System.nanoTime() - Long.parseLong(msg.substring(10)));
+                } catch (NumberFormatException e) {
+                    return;
                 }
-                // Broadcast updated user list after removal
-                broadcastUserList();
+                long smoothed = rtt.smoothed();
+                outbound.roundTrip(smoothed);
+                outbound.shedVoice(maxVoiceRttNanos > 0 && smoothed > maxVoiceRttNanos);
+                return;
             }
-        }
 
-        private void broadcast(String message, ClientHandler exclude) {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (exclude == null || client != exclude) {
-                        client.out.println(message);
+            if (msg.startsWith("DRAW ")) {
+                handleDraw(Frame.of(msg));
+            } else if (msg.equals("CLEAR")) {
+                handleDraw(CLEAR_FRAME);
+            } else if (msg.equals("UNDO")) {
+                handleUndo();
+            } else if (msg.equals(Protocol.READY)) {
+                binaryInput = true;
+            } else if (msg.equals("STAMP_DRAWS")) {
+                stampDraws = protocol2;
+            } else if (msg.startsWith("CHAT ")) {
+                // Chat message - broadcast to everyone in the room including sender
+                Frame chat = Frame.of(msg);
+                room.broadcast(chat, null);
+                if (federation != null) {
+                    federation.forward(room.name, chat);
+                }
+                System.out.println("Chat [" + room.name + "]: " + msg);
+            } else if (msg.startsWith("ROOM_JOIN ")) {
+                switchRoom(msg.substring(10).trim());
+            } else if (msg.equals("ROOM_LEAVE")) {
+                switchRoom(LOBBY);
+            } else if (msg.equals("ROOM_LIST")) {
+                send("ROOMS " + roomList());
+            } else if (msg.startsWith("NAME ")) {
+                rename(msg.substring(5));
+                System.out.println("Client named: " + clientName);
+            } else if (msg.equals("GET_USERS")) {
+                sendUserList(this);
+            } else if (msg.startsWith("CALL_") && clientName == null) {
+                // Calls are routed and paired by name; ignore them until the client has sent NAME
+            } else if (msg.startsWith("CALL_REQUEST ")) {
+                // Forward call request to target user, with the caller's codec list if the target understands it
+                String[] request = splitCodecs(msg.substring(13), Protocol.CODECS_OFFER);
+                ClientHandler target = clientsByName.get(request[0]);
+                if (target != null) {
+                    target.incomingCalls.add(clientName);
+                    target.send("CALL_REQUEST " + clientName + codecSuffix(target, Protocol.CODECS_OFFER, request[1]));
+                } else if (federation != null && federation.route(request[0], "CALL_REQUEST " + clientName)) {
+                    // A user on another node gets no codec list, so the call stays on PCM
+                    outgoingCalls.add(request[0]);
+                }
+            } else if (msg.startsWith("CALL_ACCEPT ")) {
+                // Pair the two ends for the voice relay, then forward call acceptance and the chosen codec to caller
+                String[] accept = splitCodecs(msg.substring(12), Protocol.CODEC_CHOSEN);
+                boolean requested = incomingCalls.remove(accept[0]);
+                ClientHandler caller = clientsByName.get(accept[0]);
+                if (caller != null ? pair(caller, requested) : federation != null && pairRemote(accept[0], requested)) {
+                    if (caller != null) {
+                        caller.send("CALL_ACCEPT " + clientName + codecSuffix(caller, Protocol.CODEC_CHOSEN, accept[1]));
+                    } else if (!federation.route(accept[0], "CALL_ACCEPT " + clientName)) {
+                        endCall();
+                        send("CALL_END " + accept[0]);
                     }
+                } else if (!accept[0].equals(callPeerName())) {
+                    // Not asked for, or one end is already in a call; the client drops the call it just started
+                    send("CALL_END " + accept[0]);
+                }
+            } else if (msg.startsWith("CALL_REJECT ")) {
+                // Forward call rejection to caller
+                String callerUser = msg.substring(12);
+                incomingCalls.remove(callerUser);
+                forwardToUser(callerUser, "CALL_REJECT " + clientName);
+            } else if (msg.startsWith("CALL_END ")) {
+                // Forward call end to other user; a caller hanging up before an answer withdraws the request
+                String otherUser = msg.substring(9);
+                endCall();
+                outgoingCalls.remove(otherUser);
+                ClientHandler other = clientsByName.get(otherUser);
+                if (other != null) {
+                    other.incomingCalls.remove(clientName);
+                }
+                forwardToUser(otherUser, "CALL_END " + clientName);
+            } else if (msg.startsWith("VOICE_JOIN ")) {
+                // Group channels send mixed audio as OP_VOICE or datagrams, which only protocol 2 clients understand
+                String[] join = splitCodecs(msg.substring(11), Protocol.CODECS_OFFER);
+                if (protocol2) {
+                    joinVoiceChannel(join[0].trim(), join[1] == null ? VoiceCodec.PCM : VoiceCodec.choose(join[1]));
+                }
+            } else if (msg.equals("VOICE_LEAVE")) {
+                leaveVoiceChannel();
+            } else if (msg.startsWith("VOICE_DATA ")) {
+                // Forward voice data to target user
+                String[] parts = msg.substring(11).split(" ", 2);
+                if (parts.length == 2) {
+                    String targetUser = parts[0];
+                    String voiceData = parts[1];
+                    forwardToUser(targetUser, "VOICE_DATA " + clientName + " " + voiceData);
+                }
+            }
+        }
+
+        // Binary frames carry polylines directly; any other command arrives as OP_TEXT.
+        // wireLength also counts the length prefix.
+        void handleFrame(byte[] frame, int length, int wireLength) {
+            byte opcode = frame[0];
+            if (opcode != Protocol.OP_TEXT) {
+                Metrics.received(Metrics.Op.ofFrame(opcode, frame, 1, length - 1), wireLength);
+            }
+            if (opcode == Protocol.OP_TEXT) {
+                handleMessage(new String(frame, 1, length - 1, StandardCharsets.UTF_8), wireLength);
+            } else if (opcode == Protocol.OP_DRAW || opcode == Protocol.OP_ERASE) {
+                int pointCount = Protocol.polylinePointCount(frame, 1, length - 1);
+                if (pointCount < 0) {
+                    return;
+                }
+                int[] points = new int[pointCount * 2];
+                if (Protocol.decodePolyline(frame, 1, length - 1, points) == pointCount) {
+                    // The stroke left the client about half a round trip ago
+                    long smoothedRtt = rtt.smoothed();
+                    long origin = System.nanoTime() - (smoothedRtt > 0 ? smoothedRtt / 2 : 0);
+                    handleDraw(Frame.polyline(points, opcode == Protocol.OP_ERASE, origin));
+                }
+            } else if (opcode == Protocol.OP_VOICE) {
+                relayVoice(frame, 1, length - 1);
+            }
+        }
+
+        // Routes one [int sequence][audio] packet to the voice channel's mixer, or to the call peer:
+        // UDP if it registered, else OP_VOICE or VOICE_DATA
+        void relayVoice(byte[] packet, int offset, int length) {
+            if (length < 4) {
+                return;
+            }
+            VoiceMixer.Member member = voiceMember;
+            if (member != null) {
+                member.submit(packet, offset, length);
+                return;
+            }
+            ClientHandler peer = callPeer;
+            if (peer == null) {
+                String remotePeer = remoteCallPeer;
+                if (remotePeer != null) {
+                    byte[] audio = Arrays.copyOfRange(packet, offset + 4, offset + length);
+                    forwardToUser(remotePeer, "VOICE_DATA " + clientName + " " + Base64.getEncoder().encodeToString(audio));
                 }
+                return;
+            }
+            SocketAddress peerAddress = peer.voiceAddress;
+            if (peerAddress != null && voiceRelay.send(peerAddress, packet, offset, length)) {
+                return;
             }
+            if (peer.protocol2) {
+                peer.send(Frame.voice(Arrays.copyOfRange(packet, offset, offset + length)));
+            } else {
+                byte[] audio = Arrays.copyOfRange(packet, offset + 4, offset + length);
+                peer.send("VOICE_DATA " + clientName + " " + Base64.getEncoder().encodeToString(audio));
+            }
+        }
+
+        private void handleDraw(Frame frame) {
+            room.draw(frame, this, frame == CLEAR_FRAME, federation);
         }
 
+        private void handleUndo() {
+            room.undo(this, federation);
+        }
+
+        /**
+         * Confirms the move with "ROOM name" and then sends CLEAR plus the new
+         * room's canvas, so the client's board is replaced in order with
+         * whatever the new room draws next.
+         */
+        private void switchRoom(String name) {
+            if (name.isEmpty() || name.length() > 32 || name.contains(" ") || name.contains(",") || name.contains(":")) {
+                send("ROOM_INVALID " + name);
+                return;
+            }
+            if (name.equals(room.name)) {
+                send("ROOM " + name);
+                return;
+            }
+            if (!moveToRoom(this, room, name, Frame.concat(Frame.of("ROOM " + name), List.of(CLEAR_FRAME)))) {
+                send("ROOM_FULL " + name);
+                return;
+            }
+            System.out.println(clientName + " joined room " + name);
+        }
+
+        // Full list, stamped with the presence version for protocol 2 clients
         private void sendUserList(ClientHandler client) {
-            StringBuilder userList = new StringBuilder("USERS ");
-            synchronized (clients) {
-                boolean first = true;
-                for (ClientHandler c : clients) {
-                    if (c.clientName != null) {
-                        if (!first) userList.append(",");
-                        userList.append(c.clientName);
-                        first = false;
+            presenceLock.lock();
+            try {
+                String names = userNames();
+                client.send(client.protocol2 ? "USER_LIST " + presenceVersion + " " + names : "USERS " + names);
+            } finally {
+                presenceLock.unlock();
+            }
+        }
+
+        /**
+         * Bumps the presence version once per change and queues it for every
+         * client while holding presenceLock. Delta clients get a few bytes per
+         * change; the full list is only built if an older client needs it.
+         */
+        private static void publishPresence(String left, String joined) {
+            Frame leave = left == null ? null : Frame.of("USER_LEAVE " + (++presenceVersion) + " " + left);
+            Frame join = joined == null ? null : Frame.of("USER_JOIN " + (++presenceVersion) + " " + joined);
+            Frame users = null;
+            for (ClientHandler client : clients) {
+                if (client.protocol2) {
+                    if (leave != null) {
+                        client.send(leave);
                     }
+                    if (join != null) {
+                        client.send(join);
+                    }
+                } else {
+                    if (users == null) {
+                        users = Frame.of("USERS " + userNames());
+                    }
+                    client.send(users);
                 }
             }
-            if (client.out != null) {
-                client.out.println(userList.toString());
+        }
+
+        // Also tells the other nodes, which route messages for the user here
+        private static void publishLocalPresence(String left, String joined) {
+            publishPresence(left, joined);
+            if (federation != null) {
+                if (left != null) {
+                    federation.userLeft(left);
+                }
+                if (joined != null) {
+                    federation.userJoined(joined);
+                }
             }
         }
 
-        private void broadcastUserList() {
-            StringBuilder userList = new StringBuilder("USERS ");
-            synchronized (clients) {
-                boolean first = true;
-                for (ClientHandler c : clients) {
-                    if (c.clientName != null) {
-                        if (!first) userList.append(",");
-                        userList.append(c.clientName);
-                        first = false;
-                    }
+        /**
+         * Claims the requested name in the routing index, or the first free
+         * "name-2", "name-3", ... if another client holds it, then releases
+         * the previous name. A client that did not get the name it asked for
+         * is told its assigned one.
+         */
+        private void rename(String name) {
+            String requested = name.trim();
+            if (requested.isEmpty()) {
+                requested = "User";
+            }
+            String assigned = requested;
+            presenceLock.lock();
+            try {
+                for (int suffix = 2; !claimName(assigned); suffix++) {
+                    assigned = requested + "-" + suffix;
+                }
+                String previous = clientName;
+                clientName = assigned;
+                // Tell the client its name before the presence update that lists it
+                if (!assigned.equals(name)) {
+                    send("NAME " + assigned);
+                }
+                if (previous == null) {
+                    publishLocalPresence(null, assigned);
+                } else if (!previous.equals(assigned)) {
+                    clientsByName.remove(previous, this);
+                    publishLocalPresence(previous, assigned);
                 }
+            } finally {
+                presenceLock.unlock();
             }
-            String message = userList.toString();
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client.out != null) {
-                        client.out.println(message);
-                    }
+        }
+
+        // True if name is now ours; names held on other nodes are taken too
+        private boolean claimName(String name) {
+            if (federation != null && federation.hasUser(name)) {
+                return false;
+            }
+            ClientHandler holder = clientsByName.putIfAbsent(name, this);
+            return holder == null || holder == this;
+        }
+
+        // "name;codecs=..." into the name and the codec part, which is null if absent
+        private static String[] splitCodecs(String value, String marker) {
+            int at = value.lastIndexOf(marker);
+            if (at < 0) {
+                return new String[]{value, null};
+            }
+            return new String[]{value.substring(0, at), value.substring(at + marker.length())};
+        }
+
+        // Older clients would take the codec part for part of the name
+        private static String codecSuffix(ClientHandler recipient, String marker, String codecs) {
+            return codecs != null && recipient.protocol2 ? marker + codecs : "";
+        }
+
+        private void joinVoiceChannel(String channel, VoiceCodec codec) {
+            if (channel.isEmpty() || channel.contains(" ")) {
+                return;
+            }
+            leaveVoiceChannel();
+            voiceMember = voiceMixer.join(channel, this, codec);
+            if (voiceMember == null) {
+                send("VOICE_FULL " + channel);
+            }
+        }
+
+        private void leaveVoiceChannel() {
+            VoiceMixer.Member member = voiceMember;
+            voiceMember = null;
+            if (member != null) {
+                voiceMixer.leave(member);
+            }
+        }
+
+        // Makes caller and this client each other's call peer, if caller asked for the call and neither is in one
+        private boolean pair(ClientHandler caller, boolean requested) {
+            callsLock.lock();
+            try {
+                if (!requested || caller == this || inCall() || caller.inCall()) {
+                    return false;
+                }
+                callPeer = caller;
+                caller.callPeer = this;
+                return true;
+            } finally {
+                callsLock.unlock();
+            }
+        }
+
+        // The same for a user on another node, whose node checks its own end
+        private boolean pairRemote(String peer, boolean requested) {
+            callsLock.lock();
+            try {
+                if (!requested || inCall()) {
+                    return false;
+                }
+                remoteCallPeer = peer;
+                return true;
+            } finally {
+                callsLock.unlock();
+            }
+        }
+
+        private boolean inCall() {
+            return callPeer != null || remoteCallPeer != null;
+        }
+
+        private String callPeerName() {
+            ClientHandler peer = callPeer;
+            return peer != null ? peer.clientName : remoteCallPeer;
+        }
+
+        private void endCall() {
+            callsLock.lock();
+            try {
+                ClientHandler peer = callPeer;
+                callPeer = null;
+                remoteCallPeer = null;
+                if (peer != null && peer.callPeer == this) {
+                    peer.callPeer = null;
                 }
+            } finally {
+                callsLock.unlock();
+            }
+        }
+
+        // A user on another node hung up, or withdrew its call before we answered
+        private void callEnded(String peer) {
+            incomingCalls.remove(peer);
+            outgoingCalls.remove(peer);
+            callsLock.lock();
+            try {
+                if (peer.equals(remoteCallPeer)) {
+                    remoteCallPeer = null;
+                }
+            } finally {
+                callsLock.unlock();
             }
         }
 
         private void forwardToUser(String targetUsername, String message) {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client.clientName != null && client.clientName.equals(targetUsername)) {
-                        if (client.out != null) {
-                            client.out.println(message);
+            ClientHandler client = clientsByName.get(targetUsername);
+            if (client != null) {
+                client.send(message);
+            } else if (federation != null) {
+                federation.route(targetUsername, message);
+            }
+        }
+    }
+
+    // Thread-per-client reader blocking on the socket, plus a writer thread draining the outbound queue
+    private static class SocketClientHandler extends ClientHandler implements Runnable {
+        private static final int WRITE_BATCH = 64;
+
+        private Socket socket;
+        private ThreadFactory threads;
+        private OutputStream out;
+        private FrameReader in;
+
+        public SocketClientHandler(Socket socket, ThreadFactory threads) {
+            this.socket = socket;
+            this.threads = threads;
+        }
+
+        public void run() {
+            try {
+                in = new FrameReader(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                threads.newThread(this::writeLoop).start();
+
+                while (true) {
+                    if (binaryInput) {
+                        if (in.readFrame() < 0) {
+                            break;
                         }
-                        break;
+                        handleFrame(in.frame(), in.payloadLength() + 1, in.consumed());
+                    } else {
+                        String msg = in.readLine();
+                        if (msg == null) {
+                            break;
+                        }
+                        handleMessage(msg, in.consumed());
                     }
                 }
+            } catch (IOException e) {
+                System.out.println("Client disconnected: " + getClientName());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
+                onDisconnect();
+            }
+        }
+
+        // Writes everything queued so far, then flushes once
+        private void writeLoop() {
+            List<Frame> batch = new ArrayList<>(WRITE_BATCH);
+            try {
+                while (outbound.drainTo(batch, WRITE_BATCH) > 0) {
+                    for (Frame frame : batch) {
+                        recordSent(frame, frame.writeTo(out, encodingFor(frame), stampDraws));
+                    }
+                    batch.clear();
+                    out.flush();
+                    resyncIfNeeded();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
             }
         }
+
+        void wakeWriter() {
+            // The writer blocks on the queue's condition and wakes up by itself
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
     }
-}
\ No newline at end of file
+}
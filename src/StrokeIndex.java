@@ -0,0 +1,363 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vector model of a board since its last CLEAR, so that one stroke can be
+ * taken back. A polyline that starts where a recent stroke by the same
+ * drawer with the same pen ended continues that stroke, the way clients
+ * split a long drag into batches; anything else starts a new one. Each stroke keeps its points in
+ * one int array, its bounding box widened by the pen, and who drew it. A
+ * uniform grid lists the strokes passing through each cell, so finding what
+ * covers an area only looks at strokes near it.
+ *
+ * Taking a stroke back yields a repaint: the stroke's box, wiped and redrawn
+ * with every remaining stroke that crosses it, oldest first. Its first line
+ * reads "REPAINT x y w h" followed by the removed stroke's first point, last
+ * point, point count and pen, which lets another node or a journal replay
+ * find the same stroke in its own index.
+ *
+ * Not thread safe; the canvas only calls it under its lock.
+ */
+final class StrokeIndex {
+    static final String REPAINT = "REPAINT ";
+    static final String REPAINT_END = "REPAINT_END";
+    static final int CELL_SIZE = 64;
+    // Strokes a later polyline may still continue, newest last
+    private static final int OPEN_STROKES = 64;
+
+    // Growable list of stroke ids, for grid cells and each drawer's strokes
+    private static final class Ids {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    // Strokes record their drawer by key, so a client that left is not kept reachable
+    private static final class Drawer {
+        final int key;
+        final Ids strokes = new Ids();
+
+        Drawer(int key) {
+            this.key = key;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private Ids[] cells;
+    // Per stroke, indexed by id; points of a taken-back stroke are released
+    private int[][] points = new int[64][];
+    private int[] lengths = new int[64];
+    private int[] bounds = new int[64 * 4];
+    private boolean[] erase = new boolean[64];
+    private boolean[] live = new boolean[64];
+    // Drawer key per stroke, 0 when the drawer is unknown
+    private int[] owners = new int[64];
+    private int count;
+    private final Map<Object, Drawer> drawers = new HashMap<>();
+    private int nextDrawerKey = 1;
+    private final int[] open = new int[OPEN_STROKES];
+    private int openCount;
+    // Marks strokes already collected by the current query
+    private int[] seen = new int[64];
+    private int epoch;
+    private long livePoints;
+    private int liveStrokes;
+    // False while the board holds pixels from a restored image that no stroke here accounts for
+    private boolean complete = true;
+
+    StrokeIndex(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+        this.rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+        this.cells = new Ids[columns * rows];
+    }
+
+    // Adds a DRAW polyline (x0, y0, x1, y1, ...) drawn by owner, or by an unknown drawer if owner is null
+    void add(int[] xy, boolean isErase, Object owner) {
+        int pointCount = xy.length / 2;
+        if (pointCount < 2) {
+            return;
+        }
+        int id = continued(xy[0], xy[1], isErase, owner);
+        int from = 1;
+        if (id < 0) {
+            id = newStroke(isErase, owner);
+            from = 0;
+        }
+        int length = lengths[id];
+        int needed = length + 2 * (pointCount - from);
+        if (points[id].length < needed) {
+            points[id] = Arrays.copyOf(points[id], Math.max(needed, points[id].length * 2));
+        }
+        System.arraycopy(xy, 2 * from, points[id], length, 2 * (pointCount - from));
+        lengths[id] = needed;
+        livePoints += pointCount - from;
+
+        int pad = StrokeStyle.pad(isErase);
+        for (int i = 1; i < pointCount; i++) {
+            int x1 = xy[2 * i - 2], y1 = xy[2 * i - 1], x2 = xy[2 * i], y2 = xy[2 * i + 1];
+            int left = Math.min(x1, x2) - pad, top = Math.min(y1, y2) - pad;
+            int right = Math.max(x1, x2) + pad, bottom = Math.max(y1, y2) + pad;
+            bounds[4 * id] = Math.min(bounds[4 * id], left);
+            bounds[4 * id + 1] = Math.min(bounds[4 * id + 1], top);
+            bounds[4 * id + 2] = Math.max(bounds[4 * id + 2], right);
+            bounds[4 * id + 3] = Math.max(bounds[4 * id + 3], bottom);
+            for (int row = row(top); row <= row(bottom); row++) {
+                for (int column = column(left); column <= column(right); column++) {
+                    Ids cell = cells[row * columns + column];
+                    if (cell == null) {
+                        cell = new Ids();
+                        cells[row * columns + column] = cell;
+                    }
+                    // A stroke crosses a cell with consecutive segments, so checking the last entry dedupes most of it
+                    if (cell.size == 0 || cell.ids[cell.size - 1] != id) {
+                        cell.add(id);
+                    }
+                }
+            }
+        }
+    }
+
+    // The newest stroke owner drew that is still on the board, or -1
+    int latest(Object owner) {
+        if (!complete) {
+            return -1;
+        }
+        Drawer drawer = drawers.get(owner);
+        if (drawer == null) {
+            return -1;
+        }
+        Ids strokes = drawer.strokes;
+        while (strokes.size > 0 && !live[strokes.ids[strokes.size - 1]]) {
+            strokes.size--;
+        }
+        return strokes.size > 0 ? strokes.ids[strokes.size - 1] : -1;
+    }
+
+    // The newest live stroke matching a repaint line's description, or -1
+    int find(String repaint) {
+        String[] parts = repaint.split(" ");
+        if (!complete || parts.length < 10) {
+            return -1;
+        }
+        int x0, y0, xn, yn, pointCount;
+        try {
+            x0 = Integer.parseInt(parts[5]);
+            y0 = Integer.parseInt(parts[6]);
+            xn = Integer.parseInt(parts[7]);
+            yn = Integer.parseInt(parts[8]);
+            pointCount = Integer.parseInt(parts[9]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        boolean isErase = parts.length > 10 && parts[10].equals("ERASE");
+        Ids cell = cells[row(y0) * columns + column(x0)];
+        for (int i = cell == null ? -1 : cell.size - 1; i >= 0; i--) {
+            int id = cell.ids[i];
+            int length = lengths[id];
+            if (live[id] && erase[id] == isErase && length == 2 * pointCount
+                    && points[id][0] == x0 && points[id][1] == y0
+                    && points[id][length - 2] == xn && points[id][length - 1] == yn) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes stroke id off the board and returns the repaint for its box:
+     * the REPAINT line, every remaining stroke crossing the box as DRAW
+     * frames in drawing order, and REPAINT_END.
+     */
+    Frame remove(int id) {
+        int[] stroke = points[id];
+        int length = lengths[id];
+        int x = Math.max(0, bounds[4 * id]);
+        int y = Math.max(0, bounds[4 * id + 1]);
+        int right = Math.min(width - 1, bounds[4 * id + 2]);
+        int bottom = Math.min(height - 1, bounds[4 * id + 3]);
+        // A stroke drawn entirely off the board leaves an empty box
+        int w = Math.max(0, right - x + 1);
+        int h = Math.max(0, bottom - y + 1);
+        String header = REPAINT + x + " " + y + " " + w + " " + h
+                + " " + stroke[0] + " " + stroke[1] + " " + stroke[length - 2] + " " + stroke[length - 1]
+                + " " + length / 2 + (erase[id] ? " ERASE" : "");
+        live[id] = false;
+        points[id] = null;
+        livePoints -= length / 2;
+        liveStrokes--;
+
+        List<Frame> strokes = new ArrayList<>();
+        for (int covering : query(x, y, right, bottom)) {
+            int pointCount = lengths[covering] / 2;
+            // Polyline frames carry at most MAX_POLYLINE_POINTS; longer strokes go out in overlapping pieces
+            for (int start = 0; start < pointCount - 1; start += Protocol.MAX_POLYLINE_POINTS - 1) {
+                int end = Math.min(pointCount, start + Protocol.MAX_POLYLINE_POINTS);
+                strokes.add(Frame.polyline(Arrays.copyOfRange(points[covering], 2 * start, 2 * end), erase[covering]));
+            }
+        }
+        return Frame.repaint(header, new int[] {x, y, w, h}, strokes);
+    }
+
+    // Live strokes whose box overlaps [left, right] x [top, bottom], oldest first
+    int[] query(int left, int top, int right, int bottom) {
+        if (++epoch == 0) {
+            Arrays.fill(seen, 0);
+            epoch = 1;
+        }
+        int[] found = new int[16];
+        int foundCount = 0;
+        for (int row = row(top); row <= row(bottom); row++) {
+            for (int column = column(left); column <= column(right); column++) {
+                Ids cell = cells[row * columns + column];
+                for (int i = 0; cell != null && i < cell.size; i++) {
+                    int id = cell.ids[i];
+                    if (seen[id] == epoch || !live[id]) {
+                        continue;
+                    }
+                    seen[id] = epoch;
+                    if (bounds[4 * id] <= right && bounds[4 * id + 2] >= left
+                            && bounds[4 * id + 1] <= bottom && bounds[4 * id + 3] >= top) {
+                        if (foundCount == found.length) {
+                            found = Arrays.copyOf(found, foundCount * 2);
+                        }
+                        found[foundCount++] = id;
+                    }
+                }
+            }
+        }
+        int[] ids = Arrays.copyOf(found, foundCount);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // A drawer left the board; their strokes stay but can no longer be taken back by them
+    void forget(Object owner) {
+        drawers.remove(owner);
+    }
+
+    void clear() {
+        cells = new Ids[columns * rows];
+        points = new int[64][];
+        lengths = new int[64];
+        bounds = new int[64 * 4];
+        erase = new boolean[64];
+        live = new boolean[64];
+        owners = new int[64];
+        seen = new int[64];
+        count = 0;
+        openCount = 0;
+        drawers.clear();
+        livePoints = 0;
+        liveStrokes = 0;
+        complete = true;
+    }
+
+    // The board was restored from an image; undo stays off until the next CLEAR
+    void markIncomplete() {
+        complete = false;
+    }
+
+    long points() {
+        return livePoints;
+    }
+
+    int strokes() {
+        return liveStrokes;
+    }
+
+    // The region of a repaint line as {x, y, w, h}, or null if it is malformed
+    static int[] region(String repaint) {
+        String[] parts = repaint.split(" ");
+        if (!repaint.startsWith(REPAINT) || parts.length < 5) {
+            return null;
+        }
+        try {
+            return new int[] {Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Grid column of x; points dragged off the board are filed under the nearest edge cell
+    private int column(int x) {
+        return Math.max(0, Math.min(columns - 1, Math.floorDiv(x, CELL_SIZE)));
+    }
+
+    private int row(int y) {
+        return Math.max(0, Math.min(rows - 1, Math.floorDiv(y, CELL_SIZE)));
+    }
+
+    // The open stroke of the same drawer this polyline continues, or -1; unknown drawers share one
+    private int continued(int x, int y, boolean isErase, Object owner) {
+        Drawer drawer = owner == null ? null : drawers.get(owner);
+        if (owner != null && drawer == null) {
+            return -1;
+        }
+        int key = drawer == null ? 0 : drawer.key;
+        for (int i = openCount - 1; i >= 0; i--) {
+            int id = open[i];
+            int length = lengths[id];
+            if (live[id] && erase[id] == isErase && owners[id] == key
+                    && points[id][length - 2] == x && points[id][length - 1] == y) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private int newStroke(boolean isErase, Object owner) {
+        if (count == live.length) {
+            int capacity = count * 2;
+            points = Arrays.copyOf(points, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            erase = Arrays.copyOf(erase, capacity);
+            live = Arrays.copyOf(live, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            seen = Arrays.copyOf(seen, capacity);
+        }
+        int id = count++;
+        points[id] = new int[16];
+        bounds[4 * id] = Integer.MAX_VALUE;
+        bounds[4 * id + 1] = Integer.MAX_VALUE;
+        bounds[4 * id + 2] = Integer.MIN_VALUE;
+        bounds[4 * id + 3] = Integer.MIN_VALUE;
+        erase[id] = isErase;
+        live[id] = true;
+        liveStrokes++;
+        if (owner != null) {
+            Drawer drawer = drawers.computeIfAbsent(owner, o -> new Drawer(nextDrawerKey++));
+            owners[id] = drawer.key;
+            drawer.strokes.add(id);
+        } else {
+            owners[id] = 0;
+        }
+
+        if (openCount == OPEN_STROKES) {
+            // The oldest open stroke is finished; drop the slack its array grew for appends
+            int closed = open[0];
+            if (live[closed]) {
+                points[closed] = Arrays.copyOf(points[closed], lengths[closed]);
+            }
+            System.arraycopy(open, 1, open, 0, OPEN_STROKES - 1);
+            openCount--;
+        }
+        open[openCount++] = id;
+        return id;
+    }
+}
@@ -0,0 +1,26 @@
+import java.awt.*;
+
+/**
+ * Pencil and eraser rules shared by the client Canvas and the server's
+ * headless checkpoint renderer, so both rasterize strokes identically.
+ */
+final class StrokeStyle {
+    static final BasicStroke PENCIL = new BasicStroke(3);
+    static final BasicStroke ERASER = new BasicStroke(20);
+
+    private StrokeStyle() {}
+
+    static void apply(Graphics2D g, boolean isEraser) {
+        g.setStroke(isEraser ? ERASER : PENCIL);
+        g.setColor(isEraser ? Color.WHITE : Color.BLACK);
+    }
+
+    // How far a stroke reaches past its points: half the pen width plus a pixel for antialiasing
+    static int pad(boolean isEraser) {
+        return (int) Math.ceil((isEraser ? ERASER : PENCIL).getLineWidth() / 2) + 1;
+    }
+
+    static void prepare(Graphics2D g) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+}
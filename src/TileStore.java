@@ -0,0 +1,298 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Backing store for a board larger than the window. The board is cut into
+ * square tiles that start out as one shared blank sentinel and get pixels
+ * only when something is drawn on them. The canvas is black on white, so a
+ * tile is an 8-bit gray image (64 KB). At most maxResident tiles keep their
+ * pixels; the least recently used ones beyond that are deflated, which
+ * shrinks a typical sketch tile to a few KB, and inflated again when they
+ * are drawn on or scroll back into view. A tile that turns out to be all
+ * white when it is evicted goes back to the sentinel.
+ *
+ * Only used on the EDT.
+ */
+class TileStore {
+    static final int TILE_SIZE = 256;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE;
+    private static final byte WHITE = (byte) 0xFF;
+
+    private static final class Tile {
+        BufferedImage image;
+        Graphics2D g;
+        byte[] compressed;
+    }
+
+    // Every tile that was never drawn on, or was wiped, is this one
+    private static final Tile BLANK = new Tile();
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final int maxResident;
+    private final Tile[] tiles;
+    // Tiles holding pixels, least recently used first
+    private final LinkedHashMap<Integer, Tile> resident = new LinkedHashMap<>(64, 0.75f, true);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] deflateBuffer = new byte[TILE_BYTES + 1024];
+    // Tile indexes touched by the current stroke, and the snapshot scan buffer
+    private int[] touched = new int[16];
+    private int[] rgb = new int[TILE_BYTES];
+    private long compressedBytes;
+    private int compressedTiles;
+    // While an undo's area is being redrawn, received strokes only land inside it
+    private Rectangle repaintClip;
+
+    TileStore(int width, int height, int maxResident) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.maxResident = Math.max(1, maxResident);
+        this.tiles = new Tile[columns * rows];
+        Arrays.fill(tiles, BLANK);
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    void drawLine(int x1, int y1, int x2, int y2, boolean isEraser) {
+        int count = touch(0, x1, y1, x2, y2, isEraser);
+        for (int i = 0; i < count; i++) {
+            Graphics2D g = writable(touched[i]);
+            StrokeStyle.apply(g, isEraser);
+            g.drawLine(x1, y1, x2, y2);
+        }
+    }
+
+    // Draws the whole polyline on every tile one of its segments passes near
+    void drawPolyline(int[] xs, int[] ys, int pointCount, boolean isEraser) {
+        int count = 0;
+        for (int i = 1; i < pointCount; i++) {
+            count = touch(count, xs[i - 1], ys[i - 1], xs[i], ys[i], isEraser);
+        }
+        for (int i = 0; i < count; i++) {
+            if (repaintClip != null && !repaintClip.intersects(tileBounds(touched[i]))) {
+                continue;
+            }
+            Graphics2D g = writable(touched[i]);
+            StrokeStyle.apply(g, isEraser);
+            g.setClip(repaintClip);
+            g.drawPolyline(xs, ys, pointCount);
+            g.setClip(null);
+        }
+    }
+
+    // Wipes the area to white; polylines drawn before endRepaint stay inside it
+    void beginRepaint(int x, int y, int w, int h) {
+        repaintClip = new Rectangle(x, y, w, h);
+        for (int index = 0; index < tiles.length; index++) {
+            if (tiles[index] != BLANK && repaintClip.intersects(tileBounds(index))) {
+                Graphics2D g = load(index).g;
+                g.setColor(Color.WHITE);
+                g.fillRect(x, y, w, h);
+            }
+        }
+    }
+
+    void endRepaint() {
+        repaintClip = null;
+    }
+
+    // Copies a full-board checkpoint, allocating only the tiles where it is not blank
+    void drawImage(BufferedImage snapshot) {
+        int snapshotWidth = Math.min(width, snapshot.getWidth());
+        int snapshotHeight = Math.min(height, snapshot.getHeight());
+        for (int row = 0; row * TILE_SIZE < snapshotHeight; row++) {
+            for (int column = 0; column * TILE_SIZE < snapshotWidth; column++) {
+                int x = column * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, snapshotWidth - x);
+                int h = Math.min(TILE_SIZE, snapshotHeight - y);
+                int index = row * columns + column;
+                if (tiles[index] == BLANK && isWhite(snapshot, x, y, w, h)) {
+                    continue;
+                }
+                writable(index).drawImage(snapshot, x, y, x + w, y + h, x, y, x + w, y + h, null);
+            }
+        }
+    }
+
+    void clear() {
+        // A repaint cut short by the clear must not keep clipping later strokes
+        repaintClip = null;
+        for (Tile tile : resident.values()) {
+            tile.g.dispose();
+        }
+        resident.clear();
+        Arrays.fill(tiles, BLANK);
+        compressedBytes = 0;
+        compressedTiles = 0;
+    }
+
+    // Paints the tiles under clip, in board coordinates
+    void paint(Graphics g, Rectangle clip) {
+        int firstColumn = Math.max(0, clip.x / TILE_SIZE);
+        int firstRow = Math.max(0, clip.y / TILE_SIZE);
+        int lastColumn = Math.min(columns - 1, (clip.x + clip.width - 1) / TILE_SIZE);
+        int lastRow = Math.min(rows - 1, (clip.y + clip.height - 1) / TILE_SIZE);
+        g.setColor(Color.WHITE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int index = row * columns + column;
+                int x = column * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                if (tiles[index] == BLANK) {
+                    g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+                } else {
+                    g.drawImage(load(index).image, x, y, null);
+                }
+            }
+        }
+    }
+
+    String stats() {
+        int blank = 0;
+        for (Tile tile : tiles) {
+            if (tile == BLANK) {
+                blank++;
+            }
+        }
+        return "tiles=" + tiles.length + " blank=" + blank + " resident=" + resident.size()
+                + " (" + resident.size() * TILE_BYTES / 1024 + " KB) compressed=" + compressedTiles
+                + " (" + compressedBytes / 1024 + " KB)";
+    }
+
+    private Rectangle tileBounds(int index) {
+        return new Rectangle(index % columns * TILE_SIZE, index / columns * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+    }
+
+    // Adds the tiles under a segment's padded bounds to touched[from..] and returns the new count
+    private int touch(int count, int x1, int y1, int x2, int y2, boolean isEraser) {
+        int pad = StrokeStyle.pad(isEraser);
+        int firstColumn = Math.max(0, (Math.min(x1, x2) - pad) / TILE_SIZE);
+        int firstRow = Math.max(0, (Math.min(y1, y2) - pad) / TILE_SIZE);
+        int lastColumn = Math.min(columns - 1, (Math.max(x1, x2) + pad) / TILE_SIZE);
+        int lastRow = Math.min(rows - 1, (Math.max(y1, y2) + pad) / TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int index = row * columns + column;
+                boolean seen = false;
+                for (int i = 0; i < count && !seen; i++) {
+                    seen = touched[i] == index;
+                }
+                if (!seen) {
+                    if (count == touched.length) {
+                        touched = Arrays.copyOf(touched, count * 2);
+                    }
+                    touched[count++] = index;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Graphics for drawing on a tile in board coordinates, allocating or inflating it first
+    private Graphics2D writable(int index) {
+        if (tiles[index] == BLANK) {
+            Tile tile = new Tile();
+            tile.image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+            Arrays.fill(pixels(tile.image), WHITE);
+            tiles[index] = tile;
+            return makeResident(index, tile).g;
+        }
+        return load(index).g;
+    }
+
+    private Tile load(int index) {
+        Tile tile = tiles[index];
+        if (tile.image == null) {
+            tile.image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+            inflater.reset();
+            inflater.setInput(tile.compressed);
+            try {
+                inflater.inflate(pixels(tile.image));
+            } catch (DataFormatException e) {
+                // Cannot happen for data we deflated ourselves; the tile comes back blank
+                Arrays.fill(pixels(tile.image), WHITE);
+            }
+            compressedBytes -= tile.compressed.length;
+            compressedTiles--;
+            tile.compressed = null;
+            return makeResident(index, tile);
+        }
+        resident.get(index);
+        return tile;
+    }
+
+    private Tile makeResident(int index, Tile tile) {
+        tile.g = tile.image.createGraphics();
+        StrokeStyle.prepare(tile.g);
+        tile.g.translate(-(index % columns) * TILE_SIZE, -(index / columns) * TILE_SIZE);
+        resident.put(index, tile);
+        if (resident.size() > maxResident) {
+            Iterator<Map.Entry<Integer, Tile>> eldest = resident.entrySet().iterator();
+            Map.Entry<Integer, Tile> entry = eldest.next();
+            eldest.remove();
+            evict(entry.getKey(), entry.getValue());
+        }
+        return tile;
+    }
+
+    private void evict(int index, Tile tile) {
+        tile.g.dispose();
+        tile.g = null;
+        byte[] pixels = pixels(tile.image);
+        tile.image = null;
+        if (allWhite(pixels)) {
+            tiles[index] = BLANK;
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(pixels);
+        deflater.finish();
+        int length = deflater.deflate(deflateBuffer);
+        tile.compressed = Arrays.copyOf(deflateBuffer, length);
+        compressedBytes += length;
+        compressedTiles++;
+    }
+
+    private static byte[] pixels(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static boolean allWhite(byte[] pixels) {
+        for (byte pixel : pixels) {
+            if (pixel != WHITE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isWhite(BufferedImage snapshot, int x, int y, int w, int h) {
+        snapshot.getRGB(x, y, w, h, rgb, 0, w);
+        for (int i = 0; i < w * h; i++) {
+            if ((rgb[i] & 0xFFFFFF) != 0xFFFFFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+import java.util.Arrays;
+
+/**
+ * Codecs for call audio, all working on the 8 kHz 16-bit big-endian mono
+ * PCM that AudioCapture records. Each frame is coded on its own, so a lost
+ * datagram never corrupts the frames after it.
+ *
+ * The caller lists what it supports on CALL_REQUEST and the callee picks
+ * one on CALL_ACCEPT; a call with an older client stays on PCM.
+ *
+ * Both directions write into a buffer the caller owns and return the number
+ * of bytes written, so the voice threads reuse the same arrays for every
+ * frame. Output that does not fit is cut off at the end of the buffer.
+ */
+abstract class VoiceCodec {
+    static final VoiceCodec PCM = new Pcm();
+    static final VoiceCodec MULAW = new MuLaw();
+    static final VoiceCodec ADPCM = new ImaAdpcm();
+    // Most compact first; the callee takes the first one it also supports
+    private static final VoiceCodec[] PREFERENCE = {ADPCM, MULAW, PCM};
+    // Largest PCM frame any codec decodes from a maximum size voice payload (ADPCM, about 4:1)
+    static final int MAX_DECODED_LENGTH = 4 * Protocol.MAX_VOICE_PAYLOAD;
+
+    abstract String name();
+
+    // pcm holds length bytes of 16-bit big-endian samples; out needs at least length bytes
+    abstract int encode(byte[] pcm, int length, byte[] out);
+
+    abstract int decode(byte[] data, int offset, int length, byte[] out);
+
+    // Comma-separated list for CALL_REQUEST
+    static String supported() {
+        StringBuilder names = new StringBuilder();
+        for (VoiceCodec codec : PREFERENCE) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(codec.name());
+        }
+        return names.toString();
+    }
+
+    // Our most preferred codec among the offered ones, or PCM
+    static VoiceCodec choose(String offered) {
+        for (VoiceCodec codec : PREFERENCE) {
+            for (String name : offered.split(",")) {
+                if (codec.name().equals(name.trim())) {
+                    return codec;
+                }
+            }
+        }
+        return PCM;
+    }
+
+    static VoiceCodec named(String name) {
+        for (VoiceCodec codec : PREFERENCE) {
+            if (codec.name().equals(name)) {
+                return codec;
+            }
+        }
+        return PCM;
+    }
+
+    private static int sample(byte[] pcm, int i) {
+        return (short) ((pcm[2 * i] << 8) | (pcm[2 * i + 1] & 0xFF));
+    }
+
+    private static void putSample(byte[] pcm, int i, int sample) {
+        pcm[2 * i] = (byte) (sample >> 8);
+        pcm[2 * i + 1] = (byte) sample;
+    }
+
+    private static final class Pcm extends VoiceCodec {
+        String name() {
+            return "PCM";
+        }
+
+        int encode(byte[] pcm, int length, byte[] out) {
+            length = Math.min(length, out.length);
+            System.arraycopy(pcm, 0, out, 0, length);
+            return length;
+        }
+
+        int decode(byte[] data, int offset, int length, byte[] out) {
+            length = Math.min(length, out.length);
+            System.arraycopy(data, offset, out, 0, length);
+            return length;
+        }
+    }
+
+    // G.711 mu-law: one byte per sample, 2:1
+    private static final class MuLaw extends VoiceCodec {
+        private static final int BIAS = 0x84;
+        private static final int CLIP = 32635;
+        private static final short[] DECODE = new short[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int u = ~i & 0xFF;
+                int magnitude = (((u & 0x0F) << 3) + BIAS) << ((u & 0x70) >> 4);
+                DECODE[i] = (short) ((u & 0x80) != 0 ? BIAS - magnitude : magnitude - BIAS);
+            }
+        }
+
+        String name() {
+            return "MULAW";
+        }
+
+        int encode(byte[] pcm, int length, byte[] out) {
+            int samples = Math.min(length / 2, out.length);
+            for (int i = 0; i < samples; i++) {
+                out[i] = encodeSample(sample(pcm, i));
+            }
+            return samples;
+        }
+
+        int decode(byte[] data, int offset, int length, byte[] out) {
+            int samples = Math.min(length, out.length / 2);
+            for (int i = 0; i < samples; i++) {
+                putSample(out, i, DECODE[data[offset + i] & 0xFF]);
+            }
+            return samples * 2;
+        }
+
+        private static byte encodeSample(int sample) {
+            int sign = (sample >> 8) & 0x80;
+            if (sign != 0) {
+                sample = -sample;
+            }
+            sample = Math.min(sample, CLIP) + BIAS;
+            int exponent = 7;
+            for (int mask = 0x4000; (sample & mask) == 0 && exponent > 0; mask >>= 1) {
+                exponent--;
+            }
+            int mantissa = (sample >> (exponent + 3)) & 0x0F;
+            return (byte) ~(sign | (exponent << 4) | mantissa);
+        }
+    }
+
+    /**
+     * IMA-ADPCM, about 4:1. A frame is a 3-byte header (first sample, then
+     * the step index with the top bit marking a padding nibble) followed by
+     * 4-bit codes for the remaining samples, two per byte.
+     */
+    private static final class ImaAdpcm extends VoiceCodec {
+        private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+        private static final int[] STEP_TABLE = {
+                7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+                50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+                337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+                2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+                15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767};
+        private static final int PADDED = 0x80;
+
+        String name() {
+            return "ADPCM";
+        }
+
+        int encode(byte[] pcm, int length, byte[] out) {
+            int samples = Math.min(length / 2, 2 * out.length - 5);
+            if (samples <= 0) {
+                return 0;
+            }
+            int codes = samples - 1;
+            int encodedLength = 3 + (codes + 1) / 2;
+            Arrays.fill(out, 3, encodedLength, (byte) 0);
+            int predictor = sample(pcm, 0);
+            // Start at the step that fits the first difference so the frame needs no warm-up
+            int index = 0;
+            if (codes > 0) {
+                int firstDiff = Math.abs(sample(pcm, 1) - predictor);
+                while (index < 88 && STEP_TABLE[index] < firstDiff) {
+                    index++;
+                }
+            }
+            out[0] = (byte) (predictor >> 8);
+            out[1] = (byte) predictor;
+            out[2] = (byte) (index | (codes % 2 == 1 ? PADDED : 0));
+
+            for (int i = 0; i < codes; i++) {
+                int step = STEP_TABLE[index];
+                int diff = sample(pcm, i + 1) - predictor;
+                int nibble = 0;
+                if (diff < 0) {
+                    nibble = 8;
+                    diff = -diff;
+                }
+                if (diff >= step) {
+                    nibble |= 4;
+                    diff -= step;
+                }
+                if (diff >= step >> 1) {
+                    nibble |= 2;
+                    diff -= step >> 1;
+                }
+                if (diff >= step >> 2) {
+                    nibble |= 1;
+                }
+                // Track the decoder's reconstruction, not the input, so errors do not accumulate
+                predictor = next(predictor, step, nibble);
+                index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+                out[3 + i / 2] |= (byte) (i % 2 == 0 ? nibble << 4 : nibble);
+            }
+            return encodedLength;
+        }
+
+        int decode(byte[] data, int offset, int length, byte[] out) {
+            if (length < 3 || out.length < 2) {
+                return 0;
+            }
+            int codes = (length - 3) * 2 - ((data[offset + 2] & PADDED) != 0 ? 1 : 0);
+            codes = Math.min(codes, out.length / 2 - 1);
+            int predictor = (short) ((data[offset] << 8) | (data[offset + 1] & 0xFF));
+            int index = Math.min(88, data[offset + 2] & 0x7F);
+            putSample(out, 0, predictor);
+            for (int i = 0; i < codes; i++) {
+                int b = data[offset + 3 + i / 2];
+                int nibble = i % 2 == 0 ? (b >> 4) & 0x0F : b & 0x0F;
+                predictor = next(predictor, STEP_TABLE[index], nibble);
+                index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+                putSample(out, i + 1, predictor);
+            }
+            return (codes + 1) * 2;
+        }
+
+        private static int next(int predictor, int step, int nibble) {
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) {
+                delta += step;
+            }
+            if ((nibble & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((nibble & 1) != 0) {
+                delta += step >> 2;
+            }
+            return clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+        }
+
+        private static int clamp(int sample) {
+            return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Client end of the server's UDP voice relay. It registers the token the
+ * server handed out over TCP and only reports itself ready once the relay
+ * has echoed that registration, so a network that drops UDP simply leaves
+ * the caller on the TCP voice path.
+ */
+class VoiceLink {
+    private static final int REGISTER_ATTEMPTS = 5;
+    private static final long REGISTER_INTERVAL_MS = 200;
+
+    // audio is only valid during the call; the receive buffer is reused for the next datagram
+    interface Listener {
+        void onVoice(int sequence, byte[] audio, int offset, int length);
+    }
+
+    private final DatagramChannel channel;
+    private final long token;
+    private final Listener listener;
+    private volatile boolean ready;
+    private volatile boolean closed;
+    // Only touched by the capture thread
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(Protocol.MAX_VOICE_DATAGRAM);
+
+    VoiceLink(InetSocketAddress relay, long token, Listener listener) throws IOException {
+        this.channel = DatagramChannel.open().connect(relay);
+        this.token = token;
+        this.listener = listener;
+    }
+
+    void start() {
+        Thread receiver = new Thread(this::receiveLoop, "voice-link");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        Thread registration = new Thread(() -> {
+            ByteBuffer register = ByteBuffer.allocate(9).put(Protocol.VOICE_REGISTER).putLong(token);
+            for (int i = 0; i < REGISTER_ATTEMPTS && !ready && !closed; i++) {
+                try {
+                    channel.write(register.flip());
+                    Thread.sleep(REGISTER_INTERVAL_MS);
+                } catch (IOException e) {
+                    // Nothing listening or UDP blocked; try again, then give up and stay on TCP
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!ready) {
+                System.out.println("UDP voice relay unreachable, using TCP for voice");
+            }
+        }, "voice-register");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    // Called from the capture thread only
+    void send(int sequence, byte[] audio, int length) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(Protocol.VOICE_PACKET).putLong(token).putInt(sequence)
+                .put(audio, 0, Math.min(length, Protocol.MAX_VOICE_PAYLOAD)).flip();
+        channel.write(sendBuffer);
+    }
+
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void receiveLoop() {
+        ByteBuffer in = ByteBuffer.allocate(Protocol.MAX_VOICE_DATAGRAM);
+        while (!closed) {
+            try {
+                in.clear();
+                channel.receive(in);
+                in.flip();
+                if (!in.hasRemaining()) {
+                    continue;
+                }
+                byte type = in.get();
+                if (type == Protocol.VOICE_REGISTER) {
+                    ready = true;
+                } else if (type == Protocol.VOICE_PACKET && in.remaining() >= 4) {
+                    int packetSequence = in.getInt();
+                    listener.onVoice(packetSequence, in.array(), in.position(), in.remaining());
+                }
+            } catch (IOException e) {
+                // ICMP port unreachable surfaces here on a connected channel; keep listening until closed
+                if (!channel.isOpen()) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group voice channels. Members send audio exactly as they would in a call;
+ * it is decoded on arrival into a per-member jitter buffer. Once per frame
+ * time the mixer thread sums every member's next frame and sends each member
+ * the total minus their own voice, encoded with the codec they joined with,
+ * so each client receives one stream however many people talk.
+ *
+ * A tick does a fixed amount of work per member, and channels and members
+ * are capped, so a tick is bounded. A tick that runs late is skipped rather
+ * than made up with a burst.
+ */
+class VoiceMixer implements Runnable {
+    // 64 ms of 8 kHz 16-bit mono, the frame AudioCapture reads
+    static final int FRAME_SAMPLES = 512;
+    private static final int FRAME_BYTES = 2 * FRAME_SAMPLES;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(64);
+    private static final float SAMPLE_RATE = 8000;
+    static final int MAX_MEMBERS = 16;
+    static final int MAX_CHANNELS = 64;
+
+    private final VoiceRelay relay;
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    // Serializes joins and leaves so member lists and announcements stay consistent
+    private final ReentrantLock membership = new ReentrantLock();
+    private volatile long ticks;
+    private volatile long skippedTicks;
+
+    // Scratch space, only touched by the mixer thread
+    private final int[] total = new int[FRAME_SAMPLES];
+    private final byte[] pcm = new byte[FRAME_BYTES];
+    private final byte[] encoded = new byte[FRAME_BYTES];
+    private final byte[] decoded = new byte[VoiceCodec.MAX_DECODED_LENGTH];
+    // [VOICE_PACKET][int sequence][audio]; bytes 1.. double as the OP_VOICE payload
+    private final byte[] packet = new byte[Protocol.MAX_VOICE_DATAGRAM];
+    private final ByteBuffer datagram = ByteBuffer.wrap(packet);
+
+    private static final class Channel {
+        final String name;
+        final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<>();
+
+        Channel(String name) {
+            this.name = name;
+        }
+    }
+
+    static final class Member {
+        final Server.ClientHandler client;
+        final VoiceCodec codec;
+        private final Channel channel;
+        private final JitterBuffer input = new JitterBuffer(SAMPLE_RATE, 2);
+        // Decoded samples not mixed yet, and this tick's frame; only touched by the mixer thread
+        private final short[] pending = new short[FRAME_SAMPLES + VoiceCodec.MAX_DECODED_LENGTH / 2];
+        private int pendingCount;
+        private final short[] current = new short[FRAME_SAMPLES];
+        private boolean speaking;
+        private int sequence;
+
+        Member(Server.ClientHandler client, VoiceCodec codec, Channel channel) {
+            this.client = client;
+            this.codec = codec;
+            this.channel = channel;
+        }
+
+        // One [int sequence][audio] packet from this member, on whichever thread received it
+        void submit(byte[] packet, int offset, int length) {
+            JitterBuffer.VoiceFrame frame = input.acquire();
+            if (frame != null) {
+                frame.length = codec.decode(packet, offset + 4, length - 4, frame.data);
+                input.offer(Protocol.voiceSequence(packet, offset), frame);
+            }
+        }
+    }
+
+    VoiceMixer(VoiceRelay relay) {
+        this.relay = relay;
+    }
+
+    // Adds client to the channel; null if the channel or the mixer is full
+    Member join(String channelName, Server.ClientHandler client, VoiceCodec codec) {
+        membership.lock();
+        try {
+            Channel channel = channels.get(channelName);
+            if (channel == null) {
+                if (channels.size() >= MAX_CHANNELS) {
+                    return null;
+                }
+                channel = new Channel(channelName);
+                channels.put(channelName, channel);
+            }
+            if (channel.members.size() >= MAX_MEMBERS) {
+                return null;
+            }
+            Member member = new Member(client, codec, channel);
+            channel.members.add(member);
+            client.send("VOICE_JOINED " + channelName + Protocol.CODEC_CHOSEN + codec.name());
+            announce(channel);
+            return member;
+        } finally {
+            membership.unlock();
+        }
+    }
+
+    void leave(Member member) {
+        membership.lock();
+        try {
+            Channel channel = member.channel;
+            channel.members.remove(member);
+            if (channel.members.isEmpty()) {
+                channels.remove(channel.name, channel);
+            } else {
+                announce(channel);
+            }
+        } finally {
+            membership.unlock();
+        }
+    }
+
+    String stats() {
+        int members = 0;
+        for (Channel channel : channels.values()) {
+            members += channel.members.size();
+        }
+        return "channels=" + channels.size() + " members=" + members + " ticks=" + ticks + " skipped=" + skippedTicks;
+    }
+
+    public void run() {
+        long deadline = System.nanoTime();
+        while (true) {
+            deadline += TICK_NANOS;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (-wait > TICK_NANOS) {
+                // More than a whole frame behind: drop the missed ticks and start counting from now
+                skippedTicks += -wait / TICK_NANOS;
+                deadline = System.nanoTime();
+            }
+            for (Channel channel : channels.values()) {
+                mix(channel);
+            }
+            ticks++;
+        }
+    }
+
+    private void announce(Channel channel) {
+        StringBuilder names = new StringBuilder();
+        for (Member member : channel.members) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(member.client.getClientName());
+        }
+        String message = "VOICE_MEMBERS " + channel.name + " " + names;
+        for (Member member : channel.members) {
+            member.client.send(message);
+        }
+    }
+
+    private void mix(Channel channel) {
+        Arrays.fill(total, 0);
+        int speakers = 0;
+        for (Member member : channel.members) {
+            pull(member);
+            if (member.speaking) {
+                speakers++;
+                for (int i = 0; i < FRAME_SAMPLES; i++) {
+                    total[i] += member.current[i];
+                }
+            }
+        }
+        if (speakers == 0) {
+            return;
+        }
+
+        for (Member member : channel.members) {
+            // Nothing to send to the only speaker: the mix without them is silence
+            if (member.speaking && speakers == 1) {
+                continue;
+            }
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                int sample = member.speaking ? total[i] - member.current[i] : total[i];
+                sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                pcm[2 * i] = (byte) (sample >> 8);
+                pcm[2 * i + 1] = (byte) sample;
+            }
+            send(member, member.codec.encode(pcm, FRAME_BYTES, encoded));
+        }
+    }
+
+    // Moves the member's next FRAME_SAMPLES decoded samples into current, padding with silence
+    private void pull(Member member) {
+        while (member.pendingCount < FRAME_SAMPLES) {
+            int length;
+            try {
+                length = member.input.poll(decoded, 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (length < 0) {
+                break;
+            }
+            int samples = Math.min(length / 2, member.pending.length - member.pendingCount);
+            for (int i = 0; i < samples; i++) {
+                member.pending[member.pendingCount++] = (short) ((decoded[2 * i] << 8) | (decoded[2 * i + 1] & 0xFF));
+            }
+        }
+
+        int taken = Math.min(member.pendingCount, FRAME_SAMPLES);
+        member.speaking = taken > 0;
+        System.arraycopy(member.pending, 0, member.current, 0, taken);
+        Arrays.fill(member.current, taken, FRAME_SAMPLES, (short) 0);
+        System.arraycopy(member.pending, taken, member.pending, 0, member.pendingCount - taken);
+        member.pendingCount -= taken;
+    }
+
+    // UDP if the member registered with the relay, otherwise an OP_VOICE frame on their TCP connection
+    private void send(Member member, int length) {
+        int sequence = member.sequence++;
+        packet[0] = Protocol.VOICE_PACKET;
+        packet[1] = (byte) (sequence >> 24);
+        packet[2] = (byte) (sequence >> 16);
+        packet[3] = (byte) (sequence >> 8);
+        packet[4] = (byte) sequence;
+        System.arraycopy(encoded, 0, packet, 5, length);
+
+        SocketAddress address = member.client.voiceAddress;
+        if (address != null && relay != null) {
+            try {
+                datagram.clear().limit(5 + length);
+                relay.sendDatagram(datagram, address);
+                return;
+            } catch (IOException e) {
+                // Fall through to TCP for this frame
+            }
+        }
+        member.client.send(Frame.voice(Arrays.copyOfRange(packet, 1, 5 + length)));
+    }
+}
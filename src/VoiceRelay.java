@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Relays voice between the two ends of a call over UDP, so a lost packet
+ * only costs a few milliseconds of audio instead of stalling the TCP stream
+ * that also carries strokes. Each protocol 2 client gets a random token over
+ * TCP; the first datagram carrying it tells the relay where that client's
+ * UDP socket is. A peer that never registered still gets the audio over
+ * TCP, as OP_VOICE frames or VOICE_DATA lines.
+ */
+class VoiceRelay implements Runnable {
+    private final DatagramChannel channel;
+    private final ConcurrentHashMap<Long, Server.ClientHandler> clientsByToken = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    // Only touched by the relay thread
+    private final ByteBuffer in = ByteBuffer.allocateDirect(Protocol.MAX_VOICE_DATAGRAM);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(Protocol.MAX_VOICE_DATAGRAM);
+    private final byte[] packet = new byte[Protocol.MAX_VOICE_DATAGRAM];
+
+    VoiceRelay(int port) throws IOException {
+        channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+    }
+
+    int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    long register(Server.ClientHandler client) {
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0 || clientsByToken.putIfAbsent(token, client) != null);
+        return token;
+    }
+
+    void unregister(long token) {
+        clientsByToken.remove(token);
+    }
+
+    // Sends [VOICE_PACKET][packet] from a client thread, for audio that arrived over TCP; false if it failed
+    boolean send(SocketAddress to, byte[] packet, int offset, int length) {
+        ByteBuffer datagram = ByteBuffer.allocate(1 + length).put(Protocol.VOICE_PACKET).put(packet, offset, length).flip();
+        try {
+            channel.send(datagram, to);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // For the mixer thread, which owns datagram
+    void sendDatagram(ByteBuffer datagram, SocketAddress to) throws IOException {
+        channel.send(datagram, to);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                in.clear();
+                SocketAddress from = channel.receive(in);
+                in.flip();
+                relay(from);
+            } catch (IOException e) {
+                if (!channel.isOpen()) {
+                    System.out.println("Voice relay stopped: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    private void relay(SocketAddress from) throws IOException {
+        if (in.remaining() < 9) {
+            return;
+        }
+        byte type = in.get();
+        Server.ClientHandler sender = clientsByToken.get(in.getLong());
+        if (sender == null) {
+            return;
+        }
+        // Latest source address wins, so a client whose port changes keeps working
+        sender.voiceAddress = from;
+        if (type == Protocol.VOICE_REGISTER) {
+            in.rewind();
+            channel.send(in, from);
+            return;
+        }
+        if (type != Protocol.VOICE_PACKET || in.remaining() < 4) {
+            return;
+        }
+
+        Server.ClientHandler peer = sender.callPeer;
+        SocketAddress peerAddress = peer == null ? null : peer.voiceAddress;
+        if (sender.voiceMember == null && peerAddress != null) {
+            out.clear();
+            out.put(Protocol.VOICE_PACKET).put(in).flip();
+            channel.send(out, peerAddress);
+        } else {
+            int length = in.remaining();
+            in.get(packet, 0, length);
+            sender.relayVoice(packet, 0, length);
+        }
+    }
+}